@@ -0,0 +1,230 @@
+package chihalu.nether.search;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.fabricmc.fabric.api.gametest.v1.GameTest;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.test.TestContext;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// 各/nsコマンドを複数の偽プレイヤーから同時に実行し、1回あたりのサーバースレッドの占有時間を予算と比べる
+// 場面ごとに計測値（SearchMetrics）を初期化するため、専用の環境（nether-search:budget）で他のテストと別のバッチとして実行する
+// 計測結果は -Dnether-search.gametest.timings で指定したJSONへ書き出し、CIで前回の実行と比べられるようにする
+public class CommandBudgetGameTest {
+	private static final int PLAYERS = 4;
+	// 遅いCI環境では -Dnether-search.gametest.budgetScale=2 のように予算をまとめて広げる
+	private static final double BUDGET_SCALE = Double.parseDouble(System.getProperty("nether-search.gametest.budgetScale", "1.0"));
+	private static final Path TIMINGS_FILE = Path.of(System.getProperty("nether-search.gametest.timings", "nether-search-timings.json"));
+	// 全員に結果が届いてから、ワーカー側の計測の記録を待つtick数
+	private static final int SETTLE_TICKS = 2;
+	// 1つの場面に使えるtick数。超えたら予算超過と同じく失敗として記録し、次の場面へ進む
+	private static final int SCENARIO_TICKS = 20 * 90;
+	// 結果が届いても計測としては失敗扱いにするメッセージ
+	private static final List<String> ERROR_KEYS = List.of("structure_search_error", "chest_error", "search_already_running",
+			"rate_limited", "no_structures_found", "structure_not_found");
+	// 予算はサーバースレッドの占有時間（受付時の処理とcallOnServerで戻した処理の合計）の1回あたりの最大値（ミリ秒）
+	private static final List<Scenario> SCENARIOS = List.of(
+			new Scenario("chest", SearchMetrics.Command.CHEST, "ns chest 64", Place.ROOM, "chest_count", 5.0),
+			new Scenario("chest all loot", SearchMetrics.Command.CHEST, "ns chest 64 all loot", Place.ROOM, "container_count_loot", 10.0),
+			new Scenario("glowing_chest", SearchMetrics.Command.GLOW, "ns glowing_chest 64 5 all", Place.ROOM, "glow_started_containers", 20.0),
+			new Scenario("chest audit", SearchMetrics.Command.CHEST_AUDIT, "ns chest audit 64", Place.ROOM, "chest_audit_result", 20.0),
+			new Scenario("ore", SearchMetrics.Command.ORE, "ns ore minecraft:ancient_debris 64", Place.ROOM, "ore_count", 30.0),
+			new Scenario("ore glow", SearchMetrics.Command.ORE, "ns ore minecraft:nether_gold_ore 64 glow 5", Place.ROOM, "ore_glow_started", 30.0),
+			new Scenario("search fortress", SearchMetrics.Command.SEARCH, "ns search fortress 3", Place.NETHER_SPREAD, "structure_list_header", 250.0),
+			new Scenario("search bastion_remnant", SearchMetrics.Command.SEARCH, "ns search bastion_remnant 3", Place.NETHER_SPREAD, "structure_list_header", 250.0),
+			new Scenario("search fortress shared", SearchMetrics.Command.SEARCH, "ns search fortress 3", Place.NETHER_SHARED, "structure_list_header", 250.0),
+			new Scenario("search all", SearchMetrics.Command.SEARCH, "ns search all 2", Place.NETHER_SPREAD, "structure_list_header", 400.0));
+
+	@GameTest(environment = "nether-search:budget", maxTicks = SCENARIO_TICKS * 11)
+	public void commandsStayWithinServerThreadBudget(TestContext context) {
+		// 下から鉱石の床（3段）、ネザーラックの床、容器4段の密集した部屋
+		NetherFixtures.buildOreFloor(context, 0);
+		NetherFixtures.buildContainerRoom(context, NetherFixtures.ORE_LAYERS, 4);
+		ServerWorld nether = context.getWorld().getServer().getWorld(World.NETHER);
+		context.assertTrue(nether != null, Text.literal("テストサーバーにネザーがありません"));
+		Runner runner = new Runner(context, nether);
+		context.addFinalTask(() -> {
+			context.assertTrue(runner.tick(), Text.literal("計測中: " + runner.describe()));
+			if (!runner.violations.isEmpty()) {
+				// 予算超過は待っても変わらないため、待機扱いにならない例外で即座に失敗させる
+				throw new IllegalStateException(String.join("; ", runner.violations));
+			}
+		});
+	}
+
+	// 偽プレイヤーの立ち位置
+	private enum Place {
+		// テスト構造物の中の部屋の四隅
+		ROOM,
+		// ネザーで、相乗りしないよう互いに256ブロック離れた位置
+		NETHER_SPREAD,
+		// ネザーで、全員が同じ区画（相乗りの対象）に入る位置
+		NETHER_SHARED
+	}
+
+	private record Scenario(String label, SearchMetrics.Command command, String commandLine, Place place, String doneKey, double budgetMillis) {}
+
+	// 場面を1つずつ、毎tick少しずつ進める
+	private static final class Runner {
+		private final TestContext context;
+		private final ServerWorld nether;
+		private final List<TestPlayer> players = new ArrayList<>();
+		private final List<String> violations = new ArrayList<>();
+		private final JsonArray timings = new JsonArray();
+		private int scenarioIndex = -1;
+		private Scenario scenario;
+		private int scenarioTicks;
+		private int settleTicks;
+		private long maxDispatchNanos;
+		private boolean finished;
+
+		private Runner(TestContext context, ServerWorld nether) {
+			this.context = context;
+			this.nether = nether;
+			for (int i = 0; i < PLAYERS; i++) {
+				players.add(TestPlayer.create(context.getWorld(), "budget_" + i, Vec3d.ZERO, 2));
+			}
+		}
+
+		// 1tick分進める。すべての場面を終えて結果を書き出したらtrue
+		private boolean tick() {
+			if (finished) {
+				return true;
+			}
+			if (scenario == null && !startNext()) {
+				export();
+				finished = true;
+				return true;
+			}
+			scenarioTicks++;
+			boolean accepted = true;
+			boolean done = true;
+			for (TestPlayer player : players) {
+				// 混雑で断られた分は次のtickに送り直す
+				if (!player.retry()) {
+					accepted = false;
+					continue;
+				}
+				maxDispatchNanos = Math.max(maxDispatchNanos, player.dispatchNanos());
+				for (String key : ERROR_KEYS) {
+					if (player.has(key)) {
+						violations.add(scenario.label() + ": " + player.transcript());
+						finishScenario();
+						return false;
+					}
+				}
+				done &= player.has(scenario.doneKey());
+			}
+			if (!accepted || !done) {
+				if (scenarioTicks > SCENARIO_TICKS) {
+					violations.add(scenario.label() + ": " + SCENARIO_TICKS + " tick以内に終わりませんでした");
+					finishScenario();
+				}
+				return false;
+			}
+			if (settleTicks++ < SETTLE_TICKS) {
+				return false;
+			}
+			record();
+			finishScenario();
+			return false;
+		}
+
+		private boolean startNext() {
+			scenarioIndex++;
+			if (scenarioIndex >= SCENARIOS.size()) {
+				return false;
+			}
+			scenario = SCENARIOS.get(scenarioIndex);
+			scenarioTicks = 0;
+			settleTicks = 0;
+			maxDispatchNanos = 0L;
+			SearchMetrics.reset();
+			for (int i = 0; i < players.size(); i++) {
+				TestPlayer player = players.get(i);
+				switch (scenario.place()) {
+					case ROOM -> {
+						BlockPos corner = new BlockPos((i & 1) * 7, NetherFixtures.ORE_LAYERS + 1, (i >> 1) * 7);
+						player.moveTo(context.getWorld(), Vec3d.of(context.getAbsolutePos(corner)));
+					}
+					case NETHER_SPREAD -> player.moveTo(nether, new Vec3d(i * 256 + 0.5, 64.0, 0.5));
+					case NETHER_SHARED -> player.moveTo(nether, new Vec3d(2048 + i * 4 + 0.5, 64.0, 0.5));
+				}
+				player.clearMessages();
+				// 同じtickに全員が送る。ここで断られた分はtickで送り直す
+				player.submit(scenario.commandLine());
+			}
+			return true;
+		}
+
+		private void finishScenario() {
+			scenario = null;
+		}
+
+		// この場面の計測値を記録し、予算と比べる
+		private void record() {
+			SearchMetrics.LatencyHistogram serverThread = SearchMetrics.serverThread(scenario.command());
+			SearchMetrics.LatencyHistogram latency = SearchMetrics.latency(scenario.command());
+			double budget = scenario.budgetMillis() * BUDGET_SCALE;
+			JsonObject entry = new JsonObject();
+			entry.addProperty("scenario", scenario.label());
+			entry.addProperty("command", "/" + scenario.commandLine());
+			entry.addProperty("players", players.size());
+			entry.addProperty("runs", serverThread.count());
+			entry.addProperty("shared", SearchMetrics.SHARED_REQUESTS.sum());
+			entry.addProperty("serverThreadAvgMs", serverThread.averageMillis());
+			entry.addProperty("serverThreadP99Ms", serverThread.percentileMillis(0.99));
+			entry.addProperty("serverThreadMaxMs", serverThread.maxMillis());
+			entry.addProperty("dispatchMaxMs", maxDispatchNanos / 1_000_000.0);
+			entry.addProperty("latencyAvgMs", latency.averageMillis());
+			entry.addProperty("latencyMaxMs", latency.maxMillis());
+			entry.addProperty("budgetMs", budget);
+			timings.add(entry);
+			if (serverThread.count() == 0) {
+				violations.add(scenario.label() + ": サーバースレッドの計測が記録されていません");
+			} else if (serverThread.maxMillis() > budget) {
+				violations.add(String.format("%s: サーバースレッドの占有 %.2fms が予算 %.2fms を超えました",
+						scenario.label(), serverThread.maxMillis(), budget));
+			}
+			// 同じ区画の同じ検索は、最初の1人の計算を残りの全員が共有する
+			if (scenario.place() == Place.NETHER_SHARED && SearchMetrics.SHARED_REQUESTS.sum() != players.size() - 1) {
+				violations.add(scenario.label() + ": 相乗りが " + SearchMetrics.SHARED_REQUESTS.sum() + " 件でした（期待 " + (players.size() - 1) + " 件）");
+			}
+		}
+
+		private void export() {
+			JsonObject report = new JsonObject();
+			report.addProperty("budgetScale", BUDGET_SCALE);
+			report.addProperty("players", players.size());
+			report.add("scenarios", timings);
+			JsonArray failures = new JsonArray();
+			violations.forEach(failures::add);
+			report.add("violations", failures);
+			try {
+				Path parent = TIMINGS_FILE.toAbsolutePath().getParent();
+				if (parent != null) {
+					Files.createDirectories(parent);
+				}
+				Files.writeString(TIMINGS_FILE, new GsonBuilder().setPrettyPrinting().create().toJson(report));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			NetherSearch.LOGGER.info("GameTestの計測結果を書き出しました: {}", TIMINGS_FILE.toAbsolutePath());
+		}
+
+		private String describe() {
+			return scenario != null ? scenario.label() + "（" + scenarioTicks + " tick）" : "開始前";
+		}
+	}
+}
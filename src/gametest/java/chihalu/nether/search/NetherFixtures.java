@@ -0,0 +1,145 @@
+package chihalu.nether.search;
+
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.block.entity.LootableContainerBlockEntity;
+import net.minecraft.loot.LootTables;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.entry.RegistryEntryList;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.structure.StructureStart;
+import net.minecraft.test.TestContext;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.gen.structure.Structure;
+
+import java.util.List;
+
+// GameTest用のネザーの見立て（ネザーラックの床、容器の密集した部屋、鉱石）と、
+// コマンドの結果と照らし合わせる正解をワールドから総当たりで求める処理
+final class NetherFixtures {
+	// テスト構造物（8×8×8）の内側に収める
+	static final int ROOM_SIZE = 8;
+	static final int ROOM_LAYERS = 6;
+	static final int ORE_LAYERS = 3;
+	// 容器の種類ごとのブロック（ContainerTypes.NAMESの順）
+	private static final List<Block> CONTAINER_BLOCKS = List.of(Blocks.CHEST, Blocks.TRAPPED_CHEST, Blocks.BARREL, Blocks.SHULKER_BOX, Blocks.HOPPER);
+
+	private NetherFixtures() {
+	}
+
+	// 高さbaseYの床をネザーラックにし、その上のlayers段の全マスを容器で埋める
+	// 種類は位置で順に変え、チェストの4つに1つはルート容器にする。置いた容器の数を返す
+	static int buildContainerRoom(TestContext context, int baseY, int layers) {
+		ServerWorld world = context.getWorld();
+		int placed = 0;
+		for (int x = 0; x < ROOM_SIZE; x++) {
+			for (int z = 0; z < ROOM_SIZE; z++) {
+				context.setBlockState(new BlockPos(x, baseY, z), Blocks.NETHERRACK.getDefaultState());
+				for (int y = baseY + 1; y <= baseY + layers; y++) {
+					BlockPos relative = new BlockPos(x, y, z);
+					int type = Math.floorMod(x + z * 3 + y * 7, CONTAINER_BLOCKS.size());
+					context.setBlockState(relative, CONTAINER_BLOCKS.get(type).getDefaultState());
+					if (type == 0 && (x + z + y) % 4 == 0
+							&& world.getBlockEntity(context.getAbsolutePos(relative)) instanceof LootableContainerBlockEntity lootable) {
+						lootable.setLootTable(LootTables.NETHER_BRIDGE_CHEST, world.getSeed() + placed);
+					}
+					placed++;
+				}
+			}
+		}
+		return placed;
+	}
+
+	// 高さbaseYから3段をネザーラックにし、古代の残骸とネザー金鉱石を決まった位置に埋める。置いた古代の残骸の数を返す
+	static int buildOreFloor(TestContext context, int baseY) {
+		int debris = 0;
+		for (int x = 0; x < ROOM_SIZE; x++) {
+			for (int z = 0; z < ROOM_SIZE; z++) {
+				for (int y = baseY; y < baseY + ORE_LAYERS; y++) {
+					BlockState state = Blocks.NETHERRACK.getDefaultState();
+					if ((x * 5 + z * 3 + y) % 11 == 0) {
+						state = Blocks.ANCIENT_DEBRIS.getDefaultState();
+						debris++;
+					} else if ((x + z * 7 + y) % 6 == 0) {
+						state = Blocks.NETHER_GOLD_ORE.getDefaultState();
+					}
+					context.setBlockState(new BlockPos(x, y, z), state);
+				}
+			}
+		}
+		return debris;
+	}
+
+	// 読み込み済みのチャンクの全ブロックエンティティから、ChestIndexと同じ範囲（球）・種類・ルート条件で容器を数える
+	static int countContainers(ServerWorld world, BlockPos center, int radius, ContainerTypes.Filter filter) {
+		long radiusSq = (long) radius * radius;
+		int count = 0;
+		for (int chunkX = (center.getX() - radius) >> 4; chunkX <= (center.getX() + radius) >> 4; chunkX++) {
+			for (int chunkZ = (center.getZ() - radius) >> 4; chunkZ <= (center.getZ() + radius) >> 4; chunkZ++) {
+				WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+				if (chunk == null) {
+					continue;
+				}
+				for (BlockEntity blockEntity : chunk.getBlockEntities().values()) {
+					int type = ContainerTypes.indexOf(blockEntity);
+					if (type < 0 || (filter.mask() & (1 << type)) == 0 || blockEntity.getPos().getSquaredDistance(center) >= radiusSq) {
+						continue;
+					}
+					if (filter.lootOnly() && !(blockEntity instanceof LootableContainerBlockEntity lootable && lootable.getLootTable() != null)) {
+						continue;
+					}
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	// 読み込み済みのチャンクの全ブロックを1つずつ調べ、/ns oreと同じ範囲（水平の円・高さは全域）で数える
+	static int countBlocks(ServerWorld world, BlockPos center, int radius, Block block) {
+		long radiusSq = (long) radius * radius;
+		BlockPos.Mutable pos = new BlockPos.Mutable();
+		int count = 0;
+		for (int x = center.getX() - radius; x <= center.getX() + radius; x++) {
+			long dx = x - center.getX();
+			for (int z = center.getZ() - radius; z <= center.getZ() + radius; z++) {
+				long dz = z - center.getZ();
+				if (dx * dx + dz * dz >= radiusSq) {
+					continue;
+				}
+				WorldChunk chunk = world.getChunkManager().getWorldChunk(x >> 4, z >> 4);
+				if (chunk == null) {
+					continue;
+				}
+				for (int y = world.getBottomY(); y < world.getBottomY() + world.getHeight(); y++) {
+					if (chunk.getBlockState(pos.set(x, y, z)).isOf(block)) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	// バニラの/locateと同じ処理で、起点から最も近い構造物の範囲を求める。見つからなければnull
+	static BlockBox locateVanilla(ServerWorld world, RegistryKey<Structure> key, BlockPos origin) {
+		RegistryEntry<Structure> entry = world.getRegistryManager().getOrThrow(RegistryKeys.STRUCTURE).getOrThrow(key);
+		Pair<BlockPos, RegistryEntry<Structure>> located = world.getChunkManager().getChunkGenerator()
+				.locateStructure(world, RegistryEntryList.of(entry), origin, 100, false);
+		if (located == null) {
+			return null;
+		}
+		ChunkPos chunkPos = new ChunkPos(located.getFirst());
+		StructureStart start = world.getChunk(chunkPos.x, chunkPos.z, ChunkStatus.STRUCTURE_STARTS).getStructureStart(entry.value());
+		return start != null && start.hasChildren() ? start.getBoundingBox() : null;
+	}
+}
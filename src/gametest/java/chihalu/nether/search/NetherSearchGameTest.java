@@ -0,0 +1,192 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.fabricmc.fabric.api.gametest.v1.GameTest;
+import net.minecraft.block.Blocks;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.test.TestContext;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+import net.minecraft.world.gen.structure.Structure;
+import net.minecraft.world.gen.structure.StructureKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 各/nsコマンドの結果を、ワールドの総当たりやバニラの/locateで求めた正解と照らし合わせる
+// 範囲内には同時に実行される他のテストの見立ても入りうるため、期待値は固定の数ではなく実行時のワールドから求める
+public class NetherSearchGameTest {
+	private static final int RADIUS = 16;
+	private static final int SEARCH_RESULTS = 3;
+	// 検索はネザーのチャンク（開始情報まで）の取得を伴うため長めに待つ
+	private static final int SEARCH_TICKS = 20 * 120;
+	// 検索結果の1行（"[1] 123 / -456 ..."）
+	private static final Pattern RESULT_LINE = Pattern.compile("^\\[(\\d+)] (?:.*? )?(-?\\d+) / (-?\\d+)");
+
+	@GameTest(maxTicks = 200)
+	public void containerCountsMatchWorld(TestContext context) {
+		int placed = NetherFixtures.buildContainerRoom(context, 0, NetherFixtures.ROOM_LAYERS);
+		ServerWorld world = context.getWorld();
+		List<TestPlayer> players = new ArrayList<>();
+		// 部屋の中央と2つの角から、同じコマンドを別々の偽プレイヤーで実行する
+		for (BlockPos relative : List.of(new BlockPos(4, 1, 4), new BlockPos(0, 1, 0), new BlockPos(7, 1, 7))) {
+			BlockPos center = context.getAbsolutePos(relative);
+			TestPlayer player = TestPlayer.create(world, "containers_" + players.size(), Vec3d.of(center), 2);
+			players.add(player);
+
+			player.run("ns chest " + RADIUS);
+			int chests = NetherFixtures.countContainers(world, center, RADIUS, ContainerTypes.Filter.CHESTS);
+			context.assertTrue(player.intArg("chest_count", 0) == chests,
+					Text.literal("チェスト数が一致しません: 期待 " + chests + " / " + player.transcript()));
+
+			player.clearMessages();
+			player.run("ns chest " + RADIUS + " all");
+			int all = NetherFixtures.countContainers(world, center, RADIUS, ContainerTypes.parse("all"));
+			context.assertTrue(all >= placed, Text.literal("置いた容器が索引の範囲に入っていません: " + all + " < " + placed));
+			context.assertTrue(player.intArg("container_count", 0) == all,
+					Text.literal("容器数が一致しません: 期待 " + all + " / " + player.transcript()));
+
+			player.clearMessages();
+			player.run("ns chest " + RADIUS + " loot");
+			int loot = NetherFixtures.countContainers(world, center, RADIUS, ContainerTypes.parse("loot"));
+			context.assertTrue(loot > 0, Text.literal("ルート容器が置かれていません"));
+			context.assertTrue(player.intArg("container_count_loot", 0) == loot,
+					Text.literal("未開封の容器数が一致しません: 期待 " + loot + " / " + player.transcript()));
+
+			player.clearMessages();
+			player.submit("ns chest audit " + RADIUS);
+		}
+		// 監査は読み込み済みの分を受付時に索引から数え、保存済みの分をバックグラウンドで足す
+		context.addFinalTask(() -> {
+			for (TestPlayer player : players) {
+				context.assertTrue(player.retry() && player.has("chest_audit_result"), Text.literal("監査が終わっていません: " + player.transcript()));
+				BlockPos center = BlockPos.ofFloored(player.source().getPosition());
+				int chests = NetherFixtures.countContainers(world, center, RADIUS, ContainerTypes.Filter.CHESTS);
+				context.assertTrue(player.intArg("chest_audit_result", 2) == chests,
+						Text.literal("監査の読み込み済みの数が一致しません: 期待 " + chests + " / " + player.transcript()));
+			}
+		});
+	}
+
+	@GameTest(maxTicks = 200)
+	public void glowingChestCoversEveryContainer(TestContext context) {
+		NetherFixtures.buildContainerRoom(context, 0, NetherFixtures.ROOM_LAYERS);
+		ServerWorld world = context.getWorld();
+		BlockPos center = context.getAbsolutePos(new BlockPos(4, 1, 4));
+		TestPlayer player = TestPlayer.create(world, "glow", Vec3d.of(center), 2);
+		int before = GlowSessions.sessionCount();
+		player.run("ns glowing_chest " + RADIUS + " 5 all");
+		int all = NetherFixtures.countContainers(world, center, RADIUS, ContainerTypes.parse("all"));
+		context.assertTrue(player.intArg("glow_started_containers", 0) == all,
+				Text.literal("発光させた容器数が一致しません: 期待 " + all + " / " + player.transcript()));
+		context.assertTrue(GlowSessions.sessionCount() > before, Text.literal("発光セッションが作られていません"));
+		// 同じプレイヤーの再実行は前回のセッションを置き換える
+		int sessions = GlowSessions.sessionCount();
+		player.run("ns glowing_chest " + RADIUS + " 5");
+		context.assertTrue(GlowSessions.sessionCount() == sessions, Text.literal("再実行で発光セッションが増えています"));
+		// 鉱石の発光は容器の発光を置き換えず、別のセッションになる
+		BlockPos floor = context.getAbsolutePos(new BlockPos(4, 0, 4));
+		GlowSessions.startOre(SearchJobs.ownerOf(player.source()), world, LongList.of(floor.asLong()), Blocks.NETHERRACK, 100);
+		context.assertTrue(GlowSessions.sessionCount() == sessions + 1, Text.literal("鉱石の発光が容器の発光を置き換えました"));
+		context.complete();
+	}
+
+	@GameTest(maxTicks = 200)
+	public void oreScanMatchesWorld(TestContext context) {
+		int placed = NetherFixtures.buildOreFloor(context, 0);
+		ServerWorld world = context.getWorld();
+		BlockPos center = context.getAbsolutePos(new BlockPos(4, 3, 4));
+		TestPlayer counter = TestPlayer.create(world, "ore_count", Vec3d.of(center), 2);
+		TestPlayer glower = TestPlayer.create(world, "ore_glow", Vec3d.of(center), 2);
+		// 見立ては動かないため、混雑で受付が遅れても総当たりの結果と一致する
+		counter.submit("ns ore minecraft:ancient_debris " + RADIUS);
+		glower.submit("ns ore minecraft:nether_gold_ore " + RADIUS + " glow 5");
+		int debris = NetherFixtures.countBlocks(world, center, RADIUS, Blocks.ANCIENT_DEBRIS);
+		int gold = NetherFixtures.countBlocks(world, center, RADIUS, Blocks.NETHER_GOLD_ORE);
+		context.assertTrue(debris >= placed, Text.literal("置いた古代の残骸が範囲に入っていません: " + debris + " < " + placed));
+
+		TestPlayer rejected = TestPlayer.create(world, "ore_unknown", Vec3d.of(center), 2);
+		rejected.run("ns ore minecraft:not_a_block");
+		context.assertTrue(rejected.has("ore_unknown_block"), Text.literal("不明なブロックが拒否されていません: " + rejected.transcript()));
+
+		context.addFinalTask(() -> {
+			context.assertTrue(counter.retry() & glower.retry(), Text.literal("ワーカーが混雑しています"));
+			context.assertTrue(counter.intArg("ore_count", 2) == debris,
+					Text.literal("古代の残骸の数が一致しません: 期待 " + debris + " / " + counter.transcript()));
+			context.assertTrue(glower.intArg("ore_glow_started", 2) == gold,
+					Text.literal("ネザー金鉱石の数が一致しません: 期待 " + gold + " / " + glower.transcript()));
+			context.assertTrue(glower.intArg("ore_glow_started", 3) == Math.min(gold, 256),
+					Text.literal("発光させた鉱石の数が上限と合いません: " + glower.transcript()));
+		});
+	}
+
+	@GameTest(maxTicks = SEARCH_TICKS)
+	public void searchIncludesVanillaFortress(TestContext context) {
+		assertSearchIncludesVanilla(context, "fortress", StructureKeys.FORTRESS, new BlockPos(0, 64, 0));
+	}
+
+	@GameTest(maxTicks = SEARCH_TICKS)
+	public void searchIncludesVanillaBastion(TestContext context) {
+		assertSearchIncludesVanilla(context, "bastion_remnant", StructureKeys.BASTION_REMNANT, new BlockPos(0, 64, 0));
+	}
+
+	@GameTest(maxTicks = 200)
+	public void rateLimitAppliesToPlayersOnly(TestContext context) {
+		ServerWorld world = context.getWorld();
+		Vec3d center = Vec3d.of(context.getAbsolutePos(new BlockPos(4, 1, 4)));
+		// 満タンのバケット（8トークン）で/ns chest（1トークン）は8回まで続けて実行できる
+		TestPlayer limited = TestPlayer.create(world, "rate_limited", center, 0);
+		for (int i = 0; i < 8; i++) {
+			limited.run("ns chest " + RADIUS);
+		}
+		context.assertTrue(!limited.has("rate_limited"), Text.literal("上限より前に制限されました: " + limited.transcript()));
+		limited.run("ns chest " + RADIUS);
+		context.assertTrue(limited.has("rate_limited"), Text.literal("上限を超えても制限されていません: " + limited.transcript()));
+
+		TestPlayer operator = TestPlayer.create(world, "rate_operator", center, 2);
+		for (int i = 0; i < 16; i++) {
+			operator.run("ns chest " + RADIUS);
+		}
+		context.assertTrue(!operator.has("rate_limited"), Text.literal("権限レベル2のプレイヤーが制限されました"));
+		context.complete();
+	}
+
+	// バニラの/locateで求めた最寄りの構造物が、/ns searchの上位の結果に含まれることを確かめる
+	// 距離の測り方（開始チャンクと表示する中心）の違いで順位が入れ替わりうるため、1位との一致までは求めない
+	private static void assertSearchIncludesVanilla(TestContext context, String spec, RegistryKey<Structure> key, BlockPos origin) {
+		ServerWorld nether = context.getWorld().getServer().getWorld(World.NETHER);
+		context.assertTrue(nether != null, Text.literal("テストサーバーにネザーがありません"));
+		BlockBox expected = NetherFixtures.locateVanilla(nether, key, origin);
+		context.assertTrue(expected != null, Text.literal("バニラの検索で" + spec + "が見つかりません"));
+		TestPlayer player = TestPlayer.create(nether, "search_" + spec, Vec3d.ofCenter(origin), 2);
+		player.submit("ns search " + spec + " " + SEARCH_RESULTS);
+		context.addFinalTask(() -> {
+			context.assertTrue(player.retry() && player.has("structure_list_header"), Text.literal("検索が終わっていません: " + player.transcript()));
+			List<int[]> results = parseResults(player);
+			context.assertTrue(results.size() == SEARCH_RESULTS, Text.literal("結果の件数が違います: " + player.transcript()));
+			boolean included = results.stream().anyMatch(result -> result[0] >= expected.getMinX() && result[0] <= expected.getMaxX()
+					&& result[1] >= expected.getMinZ() && result[1] <= expected.getMaxZ());
+			context.assertTrue(included, Text.literal("バニラの最寄り（" + expected + "）が結果にありません: " + player.transcript()));
+		});
+	}
+
+	// 受け取った検索結果の行から座標（x, z）を取り出す
+	static List<int[]> parseResults(TestPlayer player) {
+		List<int[]> results = new ArrayList<>();
+		for (Text message : player.messages()) {
+			for (String line : message.getString().split("\n")) {
+				Matcher matcher = RESULT_LINE.matcher(line);
+				if (matcher.find()) {
+					results.add(new int[] {Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3))});
+				}
+			}
+		}
+		return results;
+	}
+}
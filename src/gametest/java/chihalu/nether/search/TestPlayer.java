@@ -0,0 +1,163 @@
+package chihalu.nether.search;
+
+import com.mojang.authlib.GameProfile;
+import net.fabricmc.fabric.api.entity.FakePlayer;
+import net.minecraft.server.command.CommandOutput;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.text.TranslatableTextContent;
+import net.minecraft.util.math.Vec2f;
+import net.minecraft.util.math.Vec3d;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// GameTestから/nsを実行する偽プレイヤー。チャットへの出力をそのまま受け取り、翻訳キーと引数で結果を確かめる
+// 所有者（検索ジョブ・回数制限・発光セッション）はプレイヤーごとに分かれるよう、名前からUUIDを決める
+final class TestPlayer implements CommandOutput {
+	private static final String KEY_PREFIX = "message.nether_search.";
+	private final String name;
+	private final FakePlayer player;
+	private final int permissionLevel;
+	private final List<Text> messages = new ArrayList<>();
+	private ServerCommandSource source;
+	// 混雑で断られ、まだ受け付けられていない非同期のコマンド
+	private String pending;
+	// 最後に送ったコマンドの受付にかかった時間（ナノ秒）
+	private long dispatchNanos;
+
+	private TestPlayer(ServerWorld world, String name, Vec3d pos, int permissionLevel) {
+		this.name = name;
+		UUID uuid = UUID.nameUUIDFromBytes(("nether-search-gametest:" + name).getBytes(StandardCharsets.UTF_8));
+		this.player = FakePlayer.get(world, new GameProfile(uuid, name));
+		this.permissionLevel = permissionLevel;
+		moveTo(world, pos);
+	}
+
+	// 権限レベル2以上は回数制限の対象外になる
+	static TestPlayer create(ServerWorld world, String name, Vec3d pos, int permissionLevel) {
+		return new TestPlayer(world, name, pos, permissionLevel);
+	}
+
+	String name() {
+		return name;
+	}
+
+	ServerCommandSource source() {
+		return source;
+	}
+
+	void moveTo(ServerWorld world, Vec3d pos) {
+		source = new ServerCommandSource(this, pos, Vec2f.ZERO, world, permissionLevel, name, Text.literal(name), world.getServer(), player);
+	}
+
+	// 先頭の/を除いたコマンドを実行し、サーバースレッドでの受付にかかった時間（ナノ秒）を返す
+	long run(String command) {
+		long startNanos = System.nanoTime();
+		source.getServer().getCommandManager().executeWithPrefix(source, command);
+		return System.nanoTime() - startNanos;
+	}
+
+	// ワーカーで実行されるコマンドを送る。同時に計算できる数を超えて断られた場合はretryで送り直す
+	void submit(String command) {
+		pending = command;
+		retry();
+	}
+
+	// 断られたコマンドがあれば送り直す。受け付けられていればtrue（GameTestの待機処理から毎tick呼ぶ）
+	boolean retry() {
+		if (pending == null) {
+			return true;
+		}
+		int before = messages.size();
+		dispatchNanos = run(pending);
+		if (messages.size() > before && isKey(messages.get(messages.size() - 1), "search_busy")) {
+			messages.remove(messages.size() - 1);
+			return false;
+		}
+		pending = null;
+		return true;
+	}
+
+	long dispatchNanos() {
+		return dispatchNanos;
+	}
+
+	void clearMessages() {
+		messages.clear();
+	}
+
+	List<Text> messages() {
+		return messages;
+	}
+
+	boolean has(String key) {
+		return find(key) != null;
+	}
+
+	// 指定したキー（message.nether_search.を除く）の最後のメッセージの引数。無ければnull
+	Object[] find(String key) {
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			TranslatableTextContent translatable = translatableOf(messages.get(i));
+			if (translatable != null && translatable.getKey().equals(KEY_PREFIX + key)) {
+				return translatable.getArgs();
+			}
+		}
+		return null;
+	}
+
+	private static boolean isKey(Text message, String key) {
+		TranslatableTextContent translatable = translatableOf(message);
+		return translatable != null && translatable.getKey().equals(KEY_PREFIX + key);
+	}
+
+	// sendErrorは空のテキストで包んで送るため、子が1つだけならその中身を見る
+	private static TranslatableTextContent translatableOf(Text message) {
+		if (message.getContent() instanceof TranslatableTextContent translatable) {
+			return translatable;
+		}
+		if (message.getSiblings().size() == 1 && message.getSiblings().get(0).getContent() instanceof TranslatableTextContent translatable) {
+			return translatable;
+		}
+		return null;
+	}
+
+	// 指定したキーのメッセージのindex番目の引数を整数として読む。無ければ-1
+	int intArg(String key, int index) {
+		Object[] args = find(key);
+		return args != null && args.length > index && args[index] instanceof Number number ? number.intValue() : -1;
+	}
+
+	// 受け取ったメッセージを1行ずつの文字列にする（失敗時の報告用）
+	String transcript() {
+		List<String> lines = new ArrayList<>();
+		for (Text message : messages) {
+			TranslatableTextContent translatable = translatableOf(message);
+			lines.add(translatable != null ? translatable.getKey() + " " + message.getString() : message.getString());
+		}
+		return name + ": " + String.join(" | ", lines);
+	}
+
+	@Override
+	public void sendMessage(Text message) {
+		messages.add(message);
+	}
+
+	@Override
+	public boolean shouldReceiveFeedback() {
+		return true;
+	}
+
+	@Override
+	public boolean shouldTrackOutput() {
+		return true;
+	}
+
+	@Override
+	public boolean shouldBroadcastConsoleToOps() {
+		return false;
+	}
+}
@@ -0,0 +1,166 @@
+package chihalu.nether.search;
+
+import net.minecraft.util.math.BlockPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// チェスト索引の範囲検索と、リージョンNBTの読み飛ばし走査を合成チャンクで計測する
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChestScanBenchmark {
+	// /ns chest の最大半径（192）を覆うチャンク数
+	private static final int CHUNK_RADIUS = 13;
+	private static final int BOTTOM_Y = 0;
+	private static final int HEIGHT = 128;
+
+	// 1チャンクあたりのチェスト数
+	@Param({"1", "8", "32"})
+	public int chestsPerChunk;
+
+	// チェスト以外のブロックエンティティ（かまど・スポナーなど）の1チャンクあたりの数
+	@Param({"0", "16"})
+	public int otherBlockEntitiesPerChunk;
+
+	@Param({"96", "192"})
+	public int radius;
+
+	private final BlockPos center = new BlockPos(8, 64, 8);
+	private ChestIndex index;
+	private byte[][] chunkNbt;
+
+	@Setup
+	public void setup() throws IOException {
+		SplittableRandom random = new SplittableRandom(42L);
+		index = new ChestIndex();
+		int side = CHUNK_RADIUS * 2 + 1;
+		chunkNbt = new byte[side * side][];
+		int i = 0;
+		for (int chunkX = -CHUNK_RADIUS; chunkX <= CHUNK_RADIUS; chunkX++) {
+			for (int chunkZ = -CHUNK_RADIUS; chunkZ <= CHUNK_RADIUS; chunkZ++) {
+				BlockPos[] chests = new BlockPos[chestsPerChunk];
+				for (int c = 0; c < chestsPerChunk; c++) {
+					chests[c] = randomPos(random, chunkX, chunkZ);
+					index.add(chests[c]);
+				}
+				chunkNbt[i++] = writeChunk(random, chunkX, chunkZ, chests);
+			}
+		}
+	}
+
+	@Benchmark
+	public int indexCount() {
+		return index.count(center, radius);
+	}
+
+	@Benchmark
+	public int indexForEach(Blackhole blackhole) {
+		return index.forEachWithin(center, radius, blackhole::consume);
+	}
+
+	@Benchmark
+	public int regionSkim() throws IOException {
+		long radiusSq = (long) radius * radius;
+		RegionChestScanner.Tally tally = new RegionChestScanner.Tally();
+		int total = 0;
+		for (byte[] nbt : chunkNbt) {
+			total += RegionChestScanner.countChests(new DataInputStream(new ByteArrayInputStream(nbt)), center, radiusSq, tally);
+		}
+		return total;
+	}
+
+	private static BlockPos randomPos(SplittableRandom random, int chunkX, int chunkZ) {
+		return new BlockPos((chunkX << 4) + random.nextInt(16), BOTTOM_Y + random.nextInt(HEIGHT), (chunkZ << 4) + random.nextInt(16));
+	}
+
+	// 保存形式に近いチャンクNBTを組み立てる（セクションは中身を持たない長配列で代用する）
+	private byte[] writeChunk(SplittableRandom random, int chunkX, int chunkZ, BlockPos[] chests) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(10);
+		out.writeUTF("");
+		out.writeByte(3);
+		out.writeUTF("DataVersion");
+		out.writeInt(4556);
+		out.writeByte(3);
+		out.writeUTF("xPos");
+		out.writeInt(chunkX);
+		out.writeByte(3);
+		out.writeUTF("zPos");
+		out.writeInt(chunkZ);
+		out.writeByte(8);
+		out.writeUTF("Status");
+		out.writeUTF("minecraft:full");
+		// ブロック状態の代わりに、走査側が読み飛ばすだけのセクション相当のデータ
+		out.writeByte(9);
+		out.writeUTF("sections");
+		out.writeByte(10);
+		out.writeInt(HEIGHT / 16);
+		for (int s = 0; s < HEIGHT / 16; s++) {
+			out.writeByte(1);
+			out.writeUTF("Y");
+			out.writeByte(s);
+			out.writeByte(12);
+			out.writeUTF("data");
+			out.writeInt(256);
+			for (int l = 0; l < 256; l++) {
+				out.writeLong(random.nextLong());
+			}
+			out.writeByte(0);
+		}
+		out.writeByte(9);
+		out.writeUTF("block_entities");
+		out.writeByte(10);
+		out.writeInt(chests.length + otherBlockEntitiesPerChunk);
+		for (BlockPos chest : chests) {
+			writeBlockEntity(out, "minecraft:chest", chest);
+		}
+		for (int o = 0; o < otherBlockEntitiesPerChunk; o++) {
+			writeBlockEntity(out, "minecraft:furnace", randomPos(random, chunkX, chunkZ));
+		}
+		out.writeByte(0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeBlockEntity(DataOutputStream out, String id, BlockPos pos) throws IOException {
+		out.writeByte(8);
+		out.writeUTF("id");
+		out.writeUTF(id);
+		out.writeByte(3);
+		out.writeUTF("x");
+		out.writeInt(pos.getX());
+		out.writeByte(3);
+		out.writeUTF("y");
+		out.writeInt(pos.getY());
+		out.writeByte(3);
+		out.writeUTF("z");
+		out.writeInt(pos.getZ());
+		out.writeByte(9);
+		out.writeUTF("Items");
+		out.writeByte(0);
+		out.writeInt(0);
+		out.writeByte(0);
+	}
+}
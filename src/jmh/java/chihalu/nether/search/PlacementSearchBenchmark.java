@@ -0,0 +1,90 @@
+package chihalu.nether.search;
+
+import net.minecraft.util.math.ChunkPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 配置セルの列挙ループを、ワールドを使わない配置グリッドと存在判定で計測する
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlacementSearchBenchmark {
+	// ネザーの構造物セット（要塞・砦の遺跡）と同じ間隔と分離距離
+	private static final int SPACING = 27;
+	private static final int SEPARATION = 4;
+	private static final int MAX_DISTANCE = 8192;
+
+	@Param({"1", "5", "20"})
+	public int count;
+
+	// 開始チャンクに構造物が存在する割合（%）。残りはバイオーム条件などで外れたものとして扱う
+	@Param({"20", "60"})
+	public int hitPercent;
+
+	private List<StructurePlacementEnumerator.PlacementGrid> grids;
+
+	@Setup
+	public void setup() {
+		grids = List.of(new StubGrid(0x5EEDL));
+	}
+
+	@Benchmark
+	public long sweep() {
+		StructurePlacementEnumerator enumerator = new StructurePlacementEnumerator(grids, 1234, -5678, MAX_DISTANCE);
+		int found = 0;
+		long checksum = 0L;
+		while (found < count) {
+			StructurePlacementEnumerator.Candidate candidate = enumerator.next();
+			if (candidate == null) {
+				break;
+			}
+			if (!stubLocate(candidate.chunkPos())) {
+				continue;
+			}
+			found++;
+			checksum += candidate.distanceSq();
+		}
+		return checksum;
+	}
+
+	// locateStructureの代わりに、開始チャンクのハッシュで存在を決める
+	private boolean stubLocate(long chunkPos) {
+		return Math.floorMod(mix(chunkPos), 100) < hitPercent;
+	}
+
+	private static long mix(long value) {
+		long mixed = value * 0x9E3779B97F4A7C15L;
+		return mixed ^ (mixed >>> 31);
+	}
+
+	// RandomSpreadStructurePlacementと同じく、セル内のずらし量をシードとセル座標から決める
+	private record StubGrid(long seed) implements StructurePlacementEnumerator.PlacementGrid {
+		@Override
+		public int spacing() {
+			return SPACING;
+		}
+
+		@Override
+		public long startChunk(int cellX, int cellZ) {
+			long hash = mix(seed ^ ((long) cellX * 341873128712L + (long) cellZ * 132897987541L));
+			int offsetX = (int) Math.floorMod(hash, SPACING - SEPARATION);
+			int offsetZ = (int) Math.floorMod(hash >>> 32, SPACING - SEPARATION);
+			return ChunkPos.toLong(cellX * SPACING + offsetX, cellZ * SPACING + offsetZ);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package chihalu.nether.search;
+
+import net.minecraft.util.math.ChunkPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// 記録済みの構造物から未訪問の最寄りk件を求める処理を、空間索引のカーソルと全件の距離順ソートで比べる
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureGridBenchmark {
+	// ネザーの構造物セットと同じ配置間隔（チャンク）
+	private static final int SPACING = 27;
+	private static final int ORIGIN_X = 1234;
+	private static final int ORIGIN_Z = -5678;
+	// 検索の最大距離（ブロック）の二乗。記録済みの構造物はすべてこの内側に収まる
+	private static final long LIMIT_SQ = 65536L * 65536L;
+
+	// 記録済みの構造物の数
+	@Param({"1000", "10000"})
+	public int structures;
+
+	@Param({"1", "20"})
+	public int count;
+
+	// 訪問済みの割合（%）
+	@Param({"0", "90"})
+	public int visitedPercent;
+
+	private StructureGrid grid;
+	private StructureGrid[] grids;
+	private long[] chunks;
+	private boolean[] visited;
+	private final StructureGrid.Cursor cursor = new StructureGrid.Cursor();
+
+	@Setup
+	public void setup() {
+		grid = new StructureGrid();
+		grids = new StructureGrid[] {grid};
+		chunks = new long[structures];
+		visited = new boolean[structures];
+		int side = (int) Math.ceil(Math.sqrt(structures));
+		for (int i = 0; i < structures; i++) {
+			int cellX = i % side - side / 2;
+			int cellZ = i / side - side / 2;
+			long hash = mix(((long) cellX * 341873128712L) ^ ((long) cellZ * 132897987541L));
+			long chunk = ChunkPos.toLong(cellX * SPACING + (int) Math.floorMod(hash, SPACING - 4),
+					cellZ * SPACING + (int) Math.floorMod(hash >>> 32, SPACING - 4));
+			chunks[i] = chunk;
+			visited[i] = Math.floorMod(mix(chunk), 100) < visitedPercent;
+			grid.put(chunk, visited[i]);
+		}
+	}
+
+	@Benchmark
+	public long gridCursor() {
+		cursor.reset(grids, ORIGIN_X, ORIGIN_Z, LIMIT_SQ, true);
+		long checksum = 0L;
+		for (int found = 0; found < count && cursor.next(); found++) {
+			checksum += cursor.distanceSq();
+		}
+		return checksum;
+	}
+
+	// 空間索引を使わない場合の、全件の距離を求めて並べ替える方法
+	@Benchmark
+	public long scanAndSort() {
+		long[] distances = new long[structures];
+		int size = 0;
+		for (int i = 0; i < structures; i++) {
+			if (visited[i]) {
+				continue;
+			}
+			long dx = (ChunkPos.getPackedX(chunks[i]) << 4) + 8L - ORIGIN_X;
+			long dz = (ChunkPos.getPackedZ(chunks[i]) << 4) + 8L - ORIGIN_Z;
+			distances[size++] = dx * dx + dz * dz;
+		}
+		Arrays.sort(distances, 0, size);
+		long checksum = 0L;
+		for (int i = 0; i < Math.min(count, size); i++) {
+			checksum += distances[i];
+		}
+		return checksum;
+	}
+
+	private static long mix(long value) {
+		long mixed = value * 0x9E3779B97F4A7C15L;
+		return mixed ^ (mixed >>> 31);
+	}
+}
@@ -0,0 +1,162 @@
+package chihalu.nether.search;
+
+import com.mojang.datafixers.util.Either;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.structure.NetherFortressGenerator;
+import net.minecraft.structure.PoolStructurePiece;
+import net.minecraft.structure.StructureContext;
+import net.minecraft.structure.StructureLiquidSettings;
+import net.minecraft.structure.StructurePiece;
+import net.minecraft.structure.StructurePieceType;
+import net.minecraft.structure.pool.SinglePoolElement;
+import net.minecraft.structure.pool.StructurePool;
+import net.minecraft.structure.pool.StructurePoolElement;
+import net.minecraft.util.BlockRotation;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockBox;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.random.Random;
+import net.minecraft.world.StructureWorldAccess;
+import net.minecraft.world.gen.StructureAccessor;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 構造物のピース一覧から代表座標・種別を求める処理と、プール要素IDの取得経路を計測する
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructurePieceBenchmark {
+	// 実際の砦の遺跡に現れるピースIDの例（宝物庫は一覧の最後に置き、全件走査させる）
+	private static final String[] BASTION_PIECE_IDS = {
+			"minecraft:bastion/units/air_base",
+			"minecraft:bastion/units/center_pieces/center_0",
+			"minecraft:bastion/units/walls/wall_base",
+			"minecraft:bastion/units/ramparts/ramparts_0",
+			"minecraft:bastion/bridge/starting_pieces/entrance",
+			"minecraft:bastion/bridge/walls/wall_base_0",
+			"minecraft:bastion/hoglin_stable/starting_pieces/starting_stairs_0",
+			"minecraft:bastion/hoglin_stable/walls/wall_base",
+			"minecraft:bastion/mobs/piglin",
+			"minecraft:bastion/blocks/gold"
+	};
+	private static final String TREASURE_PIECE_ID = "minecraft:bastion/treasure/bases/lava_basin";
+
+	// 1つの構造物に含まれるピース数
+	@Param({"32", "128"})
+	public int pieceCount;
+
+	private List<StructurePiece> fortressPieces;
+	private List<StructurePiece> bastionPieces;
+	private String[] pieceIds;
+	private SinglePoolElement singleElement;
+	private Object fieldOnlyElement;
+
+	@Setup
+	public void setup() {
+		SharedConstants.createGameVersion();
+		Bootstrap.initialize();
+		VersionAdapter.probe();
+
+		fortressPieces = new ArrayList<>(pieceCount);
+		for (int i = 0; i < pieceCount - 1; i++) {
+			fortressPieces.add(new SyntheticPiece(boxAt(i)));
+		}
+		fortressPieces.add(new NetherFortressGenerator.BridgeCrossing(0, boxAt(pieceCount), Direction.NORTH));
+
+		bastionPieces = new ArrayList<>(pieceCount);
+		pieceIds = new String[pieceCount];
+		for (int i = 0; i < pieceCount; i++) {
+			String id = i == pieceCount - 1 ? TREASURE_PIECE_ID : BASTION_PIECE_IDS[i % BASTION_PIECE_IDS.length];
+			pieceIds[i] = id;
+			StructurePoolElement element = StructurePoolElement.ofSingle(id).apply(StructurePool.Projection.RIGID);
+			BlockBox box = boxAt(i);
+			bastionPieces.add(new PoolStructurePiece(null, element, new BlockPos(box.getMinX(), box.getMinY(), box.getMinZ()),
+					0, BlockRotation.NONE, box, StructureLiquidSettings.APPLY_WATERLOGGING));
+		}
+
+		singleElement = StructurePoolElement.ofSingle(TREASURE_PIECE_ID).apply(StructurePool.Projection.RIGID);
+		fieldOnlyElement = new FieldOnlyElement(Either.left(Identifier.of(TREASURE_PIECE_ID)));
+	}
+
+	@Benchmark
+	public BlockPos findBridgeCrossing() {
+		return NetherSearch.findBridgeCrossing(fortressPieces);
+	}
+
+	@Benchmark
+	public NetherSearch.StructureLocation findBastionDetails() {
+		return NetherSearch.findBastionDetails(bastionPieces);
+	}
+
+	@Benchmark
+	public void detectBastionType(Blackhole blackhole) {
+		for (String id : pieceIds) {
+			blackhole.consume(NetherSearch.detectBastionType(id));
+		}
+	}
+
+	// 実際のSinglePoolElementから取り出す経路
+	@Benchmark
+	public Identifier poolElementIdSingle() {
+		return VersionAdapter.poolElementId(singleElement);
+	}
+
+	// メソッドが見つからず、フィールドのゲッターだけで取り出す経路（難読化された本番環境に相当）
+	@Benchmark
+	public Identifier poolElementIdFieldOnly() {
+		return VersionAdapter.poolElementId(fieldOnlyElement);
+	}
+
+	private static BlockBox boxAt(int index) {
+		int x = (index % 8) * 16;
+		int z = (index / 8) * 16;
+		return new BlockBox(x, 40, z, x + 12, 52, z + 12);
+	}
+
+	// instanceof判定に一致しない、中身を生成しないピース
+	private static final class SyntheticPiece extends StructurePiece {
+		private SyntheticPiece(BlockBox boundingBox) {
+			super(StructurePieceType.NETHER_FORTRESS_BRIDGE_END, 0, boundingBox);
+		}
+
+		@Override
+		protected void writeNbt(StructureContext context, NbtCompound nbt) {
+		}
+
+		@Override
+		public void generate(StructureWorldAccess world, StructureAccessor structureAccessor, ChunkGenerator chunkGenerator,
+				Random random, BlockBox chunkBox, ChunkPos chunkPos, BlockPos pivot) {
+		}
+	}
+
+	// getIdOrThrow・getIdを持たず、EitherのフィールドにだけIDを持つ要素
+	private static final class FieldOnlyElement {
+		private final Either<Identifier, Object> location;
+
+		private FieldOnlyElement(Either<Identifier, Object> location) {
+			this.location = location;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package chihalu.nether.search;
+
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.registry.entry.RegistryEntryList;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import net.minecraft.world.gen.structure.Structure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// ネザーの構造物（要塞・ピグリン要塞のほか、Mod・データパックの構造物も含む）の配置候補を、ワールド原点とネザーにいるプレイヤーから外側へ順に確認して索引へ書き込む
+// 各tickの処理が終わった後の余り時間だけを使い、tickが重くなってきたら間隔を空けて止める
+// 既定では無効で、-Dnether-search.preindex=true で有効になる
+final class BackgroundIndexer {
+	private static final boolean ENABLED = Boolean.getBoolean("nether-search.preindex");
+	// 起点から索引を作る範囲（ブロック）
+	private static final int RADIUS = Math.max(256, Integer.getInteger("nether-search.preindexRadius", 4096));
+	private static final String REQUESTER = "preindex";
+	// 1tickで使う時間の上限と、次のtickのために残しておく余裕
+	private static final long MAX_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final long HEADROOM_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// tick時間の移動平均がこの割合を超えたら一時停止し、停止時間を倍々に延ばす
+	private static final double BUSY_RATIO = 0.7;
+	private static final int MIN_BACKOFF_TICKS = 20;
+	private static final int MAX_BACKOFF_TICKS = 20 * 60;
+	// プレイヤーの起点を見直す間隔と、起点を作り直す移動距離
+	private static final int ORIGIN_REFRESH_TICKS = 100;
+	private static final int ORIGIN_MOVE_BLOCKS = 512;
+	private static final int READ_QUEUE_CAPACITY = 32;
+	// ワールド原点を表す起点のキー
+	private static final UUID WORLD_ORIGIN = new UUID(0L, 0L);
+	private static final Map<UUID, Origin> ORIGINS = new HashMap<>();
+	private static Targets targets;
+	private static ThreadPoolExecutor readers;
+	private static long tickStartNanos;
+	private static double averageTickNanos;
+	private static int backoffTicks;
+	private static long resumeTick;
+	private static int nextOrigin;
+
+	private BackgroundIndexer() {
+	}
+
+	// サーバー起動完了後に呼ぶ。無効時やネザーが無い場合は何もしない
+	static void start(MinecraftServer server) {
+		stop();
+		if (!ENABLED) {
+			return;
+		}
+		targets = Targets.create(server);
+		if (targets == null) {
+			return;
+		}
+		NetherSearch.LOGGER.info("構造物のバックグラウンド索引を開始します（半径{}ブロック）", RADIUS);
+	}
+
+	static void stop() {
+		targets = null;
+		ORIGINS.clear();
+		nextOrigin = 0;
+		averageTickNanos = 0.0;
+		backoffTicks = 0;
+		resumeTick = 0L;
+		if (readers != null) {
+			readers.shutdownNow();
+			try {
+				// 索引ファイルを閉じる前に、書き込み中の読み込み結果を待つ
+				readers.awaitTermination(1L, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			readers = null;
+		}
+	}
+
+	static void onTickStart(MinecraftServer server) {
+		tickStartNanos = System.nanoTime();
+	}
+
+	// 他のtick処理が終わった時点で呼び、残り時間の範囲で候補を確認する
+	static void onTickEnd(MinecraftServer server) {
+		Targets current = targets;
+		if (current == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		long elapsed = now - tickStartNanos;
+		averageTickNanos = averageTickNanos == 0.0 ? elapsed : averageTickNanos * 0.9 + elapsed * 0.1;
+		long nanosPerTick = server.getTickManager().getNanosPerTick();
+		long tick = server.getTicks();
+		if (averageTickNanos > nanosPerTick * BUSY_RATIO || elapsed > nanosPerTick * BUSY_RATIO) {
+			backoffTicks = Math.min(MAX_BACKOFF_TICKS, Math.max(MIN_BACKOFF_TICKS, backoffTicks * 2));
+			resumeTick = tick + backoffTicks;
+			return;
+		}
+		if (tick < resumeTick) {
+			return;
+		}
+		backoffTicks /= 2;
+		long budget = Math.min(MAX_SLICE_NANOS, nanosPerTick - elapsed - HEADROOM_NANOS);
+		if (budget <= 0L) {
+			return;
+		}
+		if (tick % ORIGIN_REFRESH_TICKS == 0 || ORIGINS.isEmpty()) {
+			refreshOrigins(current);
+		}
+		long deadline = now + budget;
+		while (System.nanoTime() < deadline && !ORIGINS.isEmpty()) {
+			if (readers().getQueue().remainingCapacity() == 0) {
+				// リージョンファイルの読み込みが追いつくまで待つ
+				return;
+			}
+			if (!step(current)) {
+				return;
+			}
+		}
+	}
+
+	// ネザーにいるプレイヤーごとに起点を置き、大きく移動したら作り直す。使い切ったワールド原点の起点は残して再作成を防ぐ
+	private static void refreshOrigins(Targets current) {
+		ORIGINS.computeIfAbsent(WORLD_ORIGIN, ignored -> new Origin(current, 0, 0));
+		Map<UUID, ServerPlayerEntity> present = new HashMap<>();
+		for (ServerPlayerEntity player : current.world().getPlayers()) {
+			present.put(player.getUuid(), player);
+		}
+		Iterator<Map.Entry<UUID, Origin>> iterator = ORIGINS.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<UUID, Origin> entry = iterator.next();
+			if (!entry.getKey().equals(WORLD_ORIGIN) && !present.containsKey(entry.getKey())) {
+				iterator.remove();
+			}
+		}
+		for (ServerPlayerEntity player : present.values()) {
+			Origin origin = ORIGINS.get(player.getUuid());
+			int x = player.getBlockX();
+			int z = player.getBlockZ();
+			if (origin == null || origin.isFarFrom(x, z)) {
+				ORIGINS.put(player.getUuid(), new Origin(current, x, z));
+			}
+		}
+	}
+
+	// 起点を順番に回り、次の未確認の候補を1つ確認する。確認できる候補が残っていなければfalse
+	private static boolean step(Targets current) {
+		List<Origin> origins = new ArrayList<>(ORIGINS.values());
+		for (int attempt = 0; attempt < origins.size(); attempt++) {
+			Origin origin = origins.get(Math.floorMod(nextOrigin++, origins.size()));
+			StructurePlacementEnumerator.Candidate candidate = origin.nextUnindexed(current);
+			if (candidate != null) {
+				index(current, current.groups().get(candidate.gridIndex()), candidate.toChunkPos());
+				// 列挙は近い順なので、この候補より近い候補はすべて記録済み
+				origin.markCovered(current, Math.sqrt((double) candidate.distanceSq()) - 1.0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void index(Targets current, StructureTargets.Group group, ChunkPos chunkPos) {
+		ServerWorld world = current.world();
+		long startChunk = chunkPos.toLong();
+		// 同じ配置セルには1つの構造物しか置かれないため、見つからなかった構造物は「なし」として記録される
+		StructureTargets.Found found = StructureTargets.locate(world, current.generator(), group, chunkPos, REQUESTER);
+		SearchMetrics.PREINDEXED_CELLS.increment();
+		if (found == null) {
+			return;
+		}
+		String structureId = group.structureIds().get(found.index());
+		if (StructureIndex.isResolved(world, structureId, startChunk)) {
+			return;
+		}
+		RegistryEntryList<Structure> single = group.single(found.index());
+		NetherSearch.StructureLocation loaded = NetherSearch.resolveFromLoadedChunk(world, chunkPos, single, structureId);
+		if (loaded != null) {
+			StructureIndex.recordResolved(world, structureId, startChunk, loaded);
+			return;
+		}
+		// 保存済みのチャンクだけをリージョンファイルから解決する。未生成のチャンクは生成せず、検索時に解決する
+		try {
+			readers().execute(() -> {
+				NetherSearch.StructureLocation stored = NetherSearch.readStoredStructure(world, chunkPos, single, structureId);
+				if (stored != null) {
+					SearchMetrics.STORED_RESOLVES.increment();
+					StructureIndex.recordResolved(world, structureId, startChunk, stored);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			NetherSearch.LOGGER.debug("索引用の読み込みキューが満杯のため解決を見送りました: {}", chunkPos);
+		}
+	}
+
+	private static ThreadPoolExecutor readers() {
+		if (readers == null) {
+			readers = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(READ_QUEUE_CAPACITY), runnable -> {
+				Thread thread = new Thread(runnable, "Nether Search Indexer");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+			readers.allowCoreThreadTimeOut(true);
+		}
+		return readers;
+	}
+
+	// 索引対象のワールドと、ネザーに配置を持つ構造物の配置グループ
+	private record Targets(ServerWorld world, ChunkGenerator generator, List<StructureTargets.Group> groups,
+			List<StructurePlacementEnumerator.PlacementGrid> grids) {
+		private static Targets create(MinecraftServer server) {
+			ServerWorld world = server.getWorld(World.NETHER);
+			if (world == null) {
+				NetherSearch.LOGGER.warn("ネザーが見つからないため、バックグラウンド索引を無効にします");
+				return null;
+			}
+			RegistryWrapper.Impl<Structure> registry = NetherSearch.resolveStructureLookup(server.getRegistryManager());
+			List<StructureTargets.Group> groups = StructureTargets.group(world, StructureTargets.resolve(registry, StructureTargets.ALL));
+			if (groups.isEmpty()) {
+				NetherSearch.LOGGER.warn("ネザーの構造物の配置を取得できないため、バックグラウンド索引を無効にします");
+				return null;
+			}
+			return new Targets(world, world.getChunkManager().getChunkGenerator(), List.copyOf(groups), StructureTargets.grids(groups));
+		}
+	}
+
+	// 1つの起点から外側へ向かう列挙
+	private static final class Origin {
+		private final int x;
+		private final int z;
+		private final StructurePlacementEnumerator enumerator;
+		private boolean exhausted;
+
+		private Origin(Targets targets, int x, int z) {
+			this.x = x;
+			this.z = z;
+			this.enumerator = new StructurePlacementEnumerator(targets.grids(), x, z, RADIUS);
+		}
+
+		private boolean isFarFrom(int otherX, int otherZ) {
+			long dx = otherX - x;
+			long dz = otherZ - z;
+			return dx * dx + dz * dz > (long) ORIGIN_MOVE_BLOCKS * ORIGIN_MOVE_BLOCKS;
+		}
+
+		// 起点から半径radius未満の候補を全構造物について記録済みとして、検索が空間索引から答えられるようにする
+		private void markCovered(Targets targets, double radius) {
+			for (StructureTargets.Group group : targets.groups()) {
+				for (String id : group.structureIds()) {
+					StructureIndex.markCovered(targets.world(), id, x, z, radius);
+				}
+			}
+		}
+
+		// 全構造物について記録済みの候補は読み飛ばす
+		private StructurePlacementEnumerator.Candidate nextUnindexed(Targets targets) {
+			while (!exhausted) {
+				StructurePlacementEnumerator.Candidate candidate = enumerator.next();
+				if (candidate == null) {
+					exhausted = true;
+					markCovered(targets, RADIUS);
+					NetherSearch.LOGGER.debug("バックグラウンド索引: 起点({}, {})の範囲を確認し終えました", x, z);
+					return null;
+				}
+				for (String id : targets.groups().get(candidate.gridIndex()).structureIds()) {
+					if (!StructureIndex.isIndexed(targets.world(), id, candidate.chunkPos())) {
+						return candidate;
+					}
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package chihalu.nether.search;
+
+import chihalu.nether.search.mixin.JigsawStructureAccessor;
+import chihalu.nether.search.mixin.StructurePoolAccessor;
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.structure.StructureTemplateManager;
+import net.minecraft.structure.pool.LegacySinglePoolElement;
+import net.minecraft.structure.pool.SinglePoolElement;
+import net.minecraft.structure.pool.StructurePool;
+import net.minecraft.structure.pool.StructurePoolElement;
+import net.minecraft.util.Identifier;
+import net.minecraft.world.gen.structure.JigsawStructure;
+import net.minecraft.world.gen.structure.Structure;
+import net.minecraft.world.gen.structure.StructureKeys;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// ピグリン要塞の開始プールからジグソーの接続先をたどり、プール要素ID→種別キーの表を起動時に一度だけ作る
+// 種別は開始プールの要素（枝）ごとに決め、その枝から届いた要素すべてに付ける
+// 枝の入口より先はプールや要素の名前を見ないため、データパック・Modで名前の異なるプールに差し替えられていても判定できる
+final class BastionTypeTable {
+	// 要塞のプールに属するが種別を持たない要素（複数の枝で共有されるmobs・blocksなど）を表す値
+	private static final String UNCLASSIFIED = "";
+	// バニラの開始プールの要素（枝の入口）と種別
+	private static final Map<Identifier, String> VANILLA_BRANCHES = Map.of(
+			Identifier.ofVanilla("bastion/units/air_base"), NetherSearch.BASTION_TYPE_HOUSING_KEY,
+			Identifier.ofVanilla("bastion/hoglin_stable/air_base"), NetherSearch.BASTION_TYPE_HOGLIN_KEY,
+			Identifier.ofVanilla("bastion/treasure/big_air_full"), NetherSearch.BASTION_TYPE_TREASURE_KEY,
+			Identifier.ofVanilla("bastion/bridge/starting_pieces/entrance_base"), NetherSearch.BASTION_TYPE_BRIDGE_KEY);
+	private static volatile Map<Identifier, String> types = Map.of();
+
+	private BastionTypeTable() {
+	}
+
+	// サーバー起動時とデータパック再読み込み後に呼ぶ
+	static void rebuild(MinecraftServer server) {
+		Map<Identifier, String> table = new HashMap<>();
+		int pools = 0;
+		try {
+			RegistryWrapper.WrapperLookup lookup = server.getRegistryManager();
+			RegistryWrapper.Impl<StructurePool> registry = lookup.getOrThrow(RegistryKeys.TEMPLATE_POOL);
+			Optional<RegistryEntry.Reference<Structure>> bastion = lookup.getOrThrow(RegistryKeys.STRUCTURE).getOptional(StructureKeys.BASTION_REMNANT);
+			if (bastion.isEmpty() || !(bastion.get().value() instanceof JigsawStructure jigsaw)) {
+				NetherSearch.LOGGER.warn("ピグリン要塞がジグソー構造物として登録されていないため、種別は文字列で判定します");
+				types = Map.of();
+				return;
+			}
+			StructureTemplateManager templates = server.getStructureTemplateManager();
+			StructurePool startPool = ((JigsawStructureAccessor) jigsaw).netherSearch$getStartPool().value();
+			for (Pair<StructurePoolElement, Integer> start : ((StructurePoolAccessor) startPool).netherSearch$getElementCounts()) {
+				pools += collectBranch(start.getFirst(), registry, templates, table);
+			}
+		} catch (RuntimeException e) {
+			// 表が作れなくても、検索時は従来の文字列判定で動作を続ける
+			NetherSearch.LOGGER.warn("ピグリン要塞の種別表を作成できませんでした: {}", e.toString());
+			return;
+		}
+		types = Map.copyOf(table);
+		NetherSearch.LOGGER.info("ピグリン要塞の種別表を作成しました（枝ごとのプール延べ{}件、要素{}件）", pools, table.size());
+	}
+
+	// 種別キーを返す。種別の無い要素はnull、表に無い要素はIDの文字列から判定する
+	static String typeOf(Identifier elementId) {
+		String type = types.get(elementId);
+		if (type == null) {
+			return NetherSearch.detectBastionType(elementId.toString());
+		}
+		return type.isEmpty() ? null : type;
+	}
+
+	static void clear() {
+		types = Map.of();
+	}
+
+	// 開始プールの1要素から届くプールを幅優先でたどり、届いた要素に枝の種別を付ける。たどったプールの数を返す
+	private static int collectBranch(StructurePoolElement start, RegistryWrapper.Impl<StructurePool> registry,
+			StructureTemplateManager templates, Map<Identifier, String> table) {
+		String type = branchType(start);
+		Set<Identifier> visitedPools = new HashSet<>();
+		Set<StructurePoolElement> visitedElements = Collections.newSetFromMap(new IdentityHashMap<>());
+		ArrayDeque<StructurePoolElement> pending = new ArrayDeque<>();
+		pending.add(start);
+		while (!pending.isEmpty()) {
+			StructurePoolElement element = pending.poll();
+			if (!visitedElements.add(element)) {
+				continue;
+			}
+			if (element instanceof SinglePoolElement || element instanceof LegacySinglePoolElement) {
+				Identifier id = VersionAdapter.poolElementId(element);
+				if (id != null) {
+					table.merge(id, type, BastionTypeTable::mergeBranches);
+				}
+			}
+			for (Identifier poolId : VersionAdapter.jigsawTargetPools(element, templates)) {
+				enqueuePool(poolId, registry, visitedPools, pending);
+			}
+		}
+		return visitedPools.size();
+	}
+
+	// 未訪問のプールの要素を待ち行列に加える。置けなかったときの代替プール（末端の壁など）も同じ枝に含める
+	private static void enqueuePool(Identifier poolId, RegistryWrapper.Impl<StructurePool> registry,
+			Set<Identifier> visitedPools, ArrayDeque<StructurePoolElement> pending) {
+		if (!visitedPools.add(poolId)) {
+			return;
+		}
+		Optional<RegistryEntry.Reference<StructurePool>> pool = registry.getOptional(RegistryKey.of(RegistryKeys.TEMPLATE_POOL, poolId));
+		if (pool.isEmpty()) {
+			return;
+		}
+		for (Pair<StructurePoolElement, Integer> entry : ((StructurePoolAccessor) pool.get().value()).netherSearch$getElementCounts()) {
+			pending.add(entry.getFirst());
+		}
+		pool.get().value().getFallback().getKey()
+				.ifPresent(fallback -> enqueuePool(fallback.getValue(), registry, visitedPools, pending));
+	}
+
+	// 枝の種別。バニラの入口はIDで引き、差し替えられた入口は名前から判定する（判定できなければ種別なし）
+	private static String branchType(StructurePoolElement start) {
+		Identifier id = VersionAdapter.poolElementId(start);
+		if (id == null) {
+			return UNCLASSIFIED;
+		}
+		String type = VANILLA_BRANCHES.get(id);
+		if (type == null) {
+			type = NetherSearch.detectBastionType(id.toString());
+		}
+		return type != null ? type : UNCLASSIFIED;
+	}
+
+	// 複数の枝から届く要素はどの種別とも決められないため、種別なしにする
+	private static String mergeBranches(String current, String candidate) {
+		return current.equals(candidate) ? current : UNCLASSIFIED;
+	}
+}
@@ -0,0 +1,199 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+// 読み込み済みチャンク内の容器（チェスト・樽・シュルカーボックスなど）の位置と種類番号をチャンク単位で保持する索引
+// ブロックエンティティの読み込み・破棄イベントで更新し、検索時はブロックエンティティを走査しない
+final class ChestIndex {
+	private static final Map<RegistryKey<World>, ChestIndex> INDEXES = new HashMap<>();
+
+	private final Long2ObjectOpenHashMap<ChunkEntries> chestsByChunk = new Long2ObjectOpenHashMap<>();
+
+	ChestIndex() {
+	}
+
+	static ChestIndex of(ServerWorld world) {
+		return INDEXES.computeIfAbsent(world.getRegistryKey(), key -> new ChestIndex());
+	}
+
+	static void onBlockEntityLoad(BlockEntity blockEntity, ServerWorld world) {
+		int type = ContainerTypes.indexOf(blockEntity);
+		if (type >= 0) {
+			of(world).add(blockEntity.getPos(), type);
+		}
+	}
+
+	static void onBlockEntityUnload(BlockEntity blockEntity, ServerWorld world) {
+		if (ContainerTypes.indexOf(blockEntity) >= 0) {
+			ChestIndex index = INDEXES.get(world.getRegistryKey());
+			if (index != null) {
+				index.remove(blockEntity.getPos());
+			}
+		}
+	}
+
+	static void clearAll() {
+		INDEXES.clear();
+	}
+
+	// チェストとして登録する
+	void add(BlockPos pos) {
+		add(pos, 0);
+	}
+
+	// 同じ位置が登録済みなら種類だけを置き換える
+	void add(BlockPos pos, int type) {
+		long chunk = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+		ChunkEntries entries = chestsByChunk.get(chunk);
+		if (entries == null) {
+			entries = new ChunkEntries();
+			chestsByChunk.put(chunk, entries);
+		}
+		entries.put(pos.asLong(), (byte) type);
+	}
+
+	private void remove(BlockPos pos) {
+		long chunk = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+		ChunkEntries entries = chestsByChunk.get(chunk);
+		if (entries != null && entries.remove(pos.asLong()) && entries.size == 0) {
+			chestsByChunk.remove(chunk);
+		}
+	}
+
+	// 中心から半径内（BlockPos#isWithinDistanceと同じ判定）のチェスト数を返す
+	int count(BlockPos center, int radius) {
+		return forEachWithin(center, radius, null, null);
+	}
+
+	int count(BlockPos center, int radius, SearchEvents.ChestScan scan) {
+		return forEachWithin(center, radius, null, scan);
+	}
+
+	// 半径内のチェスト位置（BlockPos#asLong形式）を順に渡し、件数を返す
+	int forEachWithin(BlockPos center, int radius, LongConsumer consumer) {
+		return forEachWithin(center, radius, consumer, null);
+	}
+
+	// scanを渡すと、調べたチャンク数と位置数をJFRイベントへ加算する
+	int forEachWithin(BlockPos center, int radius, LongConsumer consumer, SearchEvents.ChestScan scan) {
+		return forEachWithin(center, radius, ContainerTypes.DEFAULT, null, null, consumer, scan);
+	}
+
+	// 種類がtypeMaskに含まれ、positionFilter（nullなら無条件）を通った容器を1回の走査で数える
+	// countsByTypeを渡すと種類番号ごとの件数を加算する
+	int forEachWithin(BlockPos center, int radius, int typeMask, LongPredicate positionFilter, int[] countsByType,
+			LongConsumer consumer, SearchEvents.ChestScan scan) {
+		int centerX = center.getX();
+		int centerY = center.getY();
+		int centerZ = center.getZ();
+		long radiusSq = (long) radius * radius;
+		int minChunkX = (centerX - radius) >> 4;
+		int maxChunkX = (centerX + radius) >> 4;
+		int minChunkZ = (centerZ - radius) >> 4;
+		int maxChunkZ = (centerZ + radius) >> 4;
+		int count = 0;
+		int chunksVisited = 0;
+		int visited = 0;
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			long dx = axisDistance(centerX, chunkX << 4);
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				// チャンク柱全体が球の外にあれば中身を見ずに飛ばす
+				long dz = axisDistance(centerZ, chunkZ << 4);
+				if (dx * dx + dz * dz >= radiusSq) {
+					continue;
+				}
+				ChunkEntries entries = chestsByChunk.get(ChunkPos.toLong(chunkX, chunkZ));
+				if (entries == null) {
+					continue;
+				}
+				long[] positions = entries.positions;
+				byte[] types = entries.types;
+				int size = entries.size;
+				chunksVisited++;
+				visited += size;
+				for (int i = 0; i < size; i++) {
+					int type = types[i];
+					if ((typeMask & (1 << type)) == 0) {
+						continue;
+					}
+					long packed = positions[i];
+					long px = BlockPos.unpackLongX(packed) - centerX;
+					long py = BlockPos.unpackLongY(packed) - centerY;
+					long pz = BlockPos.unpackLongZ(packed) - centerZ;
+					if (px * px + py * py + pz * pz >= radiusSq || (positionFilter != null && !positionFilter.test(packed))) {
+						continue;
+					}
+					count++;
+					if (countsByType != null) {
+						countsByType[type]++;
+					}
+					if (consumer != null) {
+						consumer.accept(packed);
+					}
+				}
+			}
+		}
+		if (scan != null) {
+			scan.chunksVisited += chunksVisited;
+			scan.blockEntitiesVisited += visited;
+			scan.chests += count;
+		}
+		return count;
+	}
+
+	// 中心座標から16ブロック幅の区間までの最短距離
+	static long axisDistance(int center, int sectionStart) {
+		if (center < sectionStart) {
+			return sectionStart - center;
+		}
+		int sectionEnd = sectionStart + 15;
+		return center > sectionEnd ? center - sectionEnd : 0;
+	}
+
+	// 1チャンク分の位置と種類番号。順序は不要なので、削除は末尾と入れ替えて行う
+	private static final class ChunkEntries {
+		private long[] positions = new long[4];
+		private byte[] types = new byte[4];
+		private int size;
+
+		private void put(long packed, byte type) {
+			for (int i = 0; i < size; i++) {
+				if (positions[i] == packed) {
+					types[i] = type;
+					return;
+				}
+			}
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+				types = Arrays.copyOf(types, size * 2);
+			}
+			positions[size] = packed;
+			types[size] = type;
+			size++;
+		}
+
+		private boolean remove(long packed) {
+			for (int i = 0; i < size; i++) {
+				if (positions[i] == packed) {
+					size--;
+					positions[i] = positions[size];
+					types[i] = types[size];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package chihalu.nether.search;
+
+import net.minecraft.server.world.OptionalChunk;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkStatus;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+// 構造物の解決に必要なチャンクを、強制読み込みの設定を変えずに非同期で取得する
+// バニラのチャンクFutureは一時的なチケットで読み込みを進めるため、サーバーのtickはその間も止まらない
+// 同時に要求する数を制限し、チケットの期限切れなどで取得できなかった要求は数回までやり直す
+final class ChunkAcquisition {
+	private static final int MAX_IN_FLIGHT = 8;
+	private static final int MAX_ATTEMPTS = 3;
+	// 以下はサーバースレッドからのみ触る
+	private static final Deque<Request> WAITING = new ArrayDeque<>();
+	private static int inFlight;
+
+	private ChunkAcquisition() {
+	}
+
+	// 任意のスレッドから呼び出せる。完了はサーバースレッド上で通知される
+	static CompletableFuture<Chunk> acquire(ServerWorld world, ChunkPos chunkPos, ChunkStatus status) {
+		Request request = new Request(world, chunkPos, status);
+		world.getServer().execute(() -> {
+			WAITING.addLast(request);
+			drain();
+		});
+		return request.result;
+	}
+
+	// サーバー停止時に、待機中の要求をすべて打ち切る
+	static void clear() {
+		for (Request request : WAITING) {
+			request.result.completeExceptionally(new CancellationException());
+		}
+		WAITING.clear();
+		inFlight = 0;
+	}
+
+	private static void drain() {
+		while (inFlight < MAX_IN_FLIGHT && !WAITING.isEmpty()) {
+			Request request = WAITING.pollFirst();
+			if (request.result.isDone()) {
+				// 待っている側がキャンセル・タイムアウトした要求
+				continue;
+			}
+			inFlight++;
+			request.attempts++;
+			request.world.getChunkManager()
+					.getChunkFutureSyncOnMainThread(request.chunkPos.x, request.chunkPos.z, request.status, true)
+					.whenCompleteAsync((result, error) -> finish(request, result, error), request.world.getServer());
+		}
+	}
+
+	private static void finish(Request request, OptionalChunk<Chunk> result, Throwable error) {
+		inFlight = Math.max(0, inFlight - 1);
+		Chunk chunk = error == null && result != null ? result.orElse(null) : null;
+		if (chunk != null) {
+			request.result.complete(chunk);
+		} else if (request.attempts < MAX_ATTEMPTS && !request.result.isDone()) {
+			// 先頭へ戻し、他の要求より先にやり直す
+			WAITING.addFirst(request);
+		} else {
+			NetherSearch.LOGGER.debug("チャンク{}を取得できませんでした（{}回試行）", request.chunkPos, request.attempts);
+			request.result.complete(null);
+		}
+		drain();
+	}
+
+	private static final class Request {
+		private final ServerWorld world;
+		private final ChunkPos chunkPos;
+		private final ChunkStatus status;
+		private final CompletableFuture<Chunk> result = new CompletableFuture<>();
+		private int attempts;
+
+		private Request(ServerWorld world, ChunkPos chunkPos, ChunkStatus status) {
+			this.world = world;
+			this.chunkPos = chunkPos;
+			this.status = status;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package chihalu.nether.search;
+
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.block.entity.BlockEntityType;
+import net.minecraft.block.entity.LootableContainerBlockEntity;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
+
+// /ns chest・/ns glowing_chest の対象にする容器の種類。種類ごとに番号とビットを割り当てる
+// ブロックエンティティの読み込み時に1度だけ種類番号を求めて索引に持たせ、検索時はビットマスクとの照合だけで絞り込む
+final class ContainerTypes {
+	// 番号順。名前はコマンド引数と翻訳キー（container_type.<名前>）に使う
+	static final List<String> NAMES = List.of("chest", "trapped_chest", "barrel", "shulker_box", "hopper");
+	static final int CHEST = 1;
+	static final int TRAPPED_CHEST = 1 << 1;
+	static final int BARREL = 1 << 2;
+	static final int SHULKER_BOX = 1 << 3;
+	static final int HOPPER = 1 << 4;
+	static final int ALL = (1 << NAMES.size()) - 1;
+	// 種類を指定しない場合は従来どおり通常・トラップチェスト
+	static final int DEFAULT = CHEST | TRAPPED_CHEST;
+	// すべての種類を表す指定と、未開封のルート容器だけに絞る指定
+	static final String ALL_KEYWORD = "all";
+	static final String LOOT_KEYWORD = "loot";
+	private static final Reference2IntOpenHashMap<BlockEntityType<?>> INDEXES = createIndexes();
+
+	private ContainerTypes() {
+	}
+
+	// 対象の容器なら種類番号を、それ以外は-1を返す
+	static int indexOf(BlockEntity blockEntity) {
+		return INDEXES.getInt(blockEntity.getType());
+	}
+
+	// 空白区切りの種類名（all・lootを含む）を解釈する。知らない名前が含まれていればnull
+	static Filter parse(String input) {
+		int mask = 0;
+		boolean lootOnly = false;
+		for (String token : input.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+			if (token.isEmpty()) {
+				continue;
+			}
+			if (ALL_KEYWORD.equals(token)) {
+				mask |= ALL;
+			} else if (LOOT_KEYWORD.equals(token)) {
+				lootOnly = true;
+			} else {
+				int index = NAMES.indexOf(token);
+				if (index < 0) {
+					return null;
+				}
+				mask |= 1 << index;
+			}
+		}
+		if (mask == 0) {
+			// lootだけが指定された場合は、すべての種類の未開封の容器を対象にする
+			mask = lootOnly ? ALL : DEFAULT;
+		}
+		return new Filter(mask, lootOnly);
+	}
+
+	// 入力中の最後の語に対して、種類名を補完候補として出す
+	static CompletableFuture<Suggestions> suggest(CommandContext<ServerCommandSource> ctx, SuggestionsBuilder builder) {
+		String remaining = builder.getRemainingLowerCase();
+		int lastSpace = remaining.lastIndexOf(' ');
+		String partial = remaining.substring(lastSpace + 1);
+		SuggestionsBuilder offset = builder.createOffset(builder.getStart() + lastSpace + 1);
+		for (String name : NAMES) {
+			if (name.startsWith(partial)) {
+				offset.suggest(name);
+			}
+		}
+		for (String keyword : List.of(ALL_KEYWORD, LOOT_KEYWORD)) {
+			if (keyword.startsWith(partial)) {
+				offset.suggest(keyword);
+			}
+		}
+		return offset.buildFuture();
+	}
+
+	private static Reference2IntOpenHashMap<BlockEntityType<?>> createIndexes() {
+		Reference2IntOpenHashMap<BlockEntityType<?>> indexes = new Reference2IntOpenHashMap<>();
+		indexes.defaultReturnValue(-1);
+		indexes.put(BlockEntityType.CHEST, 0);
+		indexes.put(BlockEntityType.TRAPPED_CHEST, 1);
+		indexes.put(BlockEntityType.BARREL, 2);
+		indexes.put(BlockEntityType.SHULKER_BOX, 3);
+		indexes.put(BlockEntityType.HOPPER, 4);
+		return indexes;
+	}
+
+	// 対象の種類のビットマスクと、未開封のルート容器だけに絞るか
+	record Filter(int mask, boolean lootOnly) {
+		// 種類を指定しなかった場合
+		static final Filter CHESTS = new Filter(DEFAULT, false);
+
+		boolean isDefault() {
+			return equals(CHESTS);
+		}
+
+		// 索引の種類だけでは分からない条件（ルートテーブルが残っているか）を位置ごとに確かめる。サーバースレッドから使う
+		LongPredicate positionFilter(ServerWorld world) {
+			if (!lootOnly) {
+				return null;
+			}
+			BlockPos.Mutable pos = new BlockPos.Mutable();
+			return packed -> world.getBlockEntity(pos.set(packed)) instanceof LootableContainerBlockEntity lootable
+					&& lootable.getLootTable() != null;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.world.World;
+import net.minecraft.world.dimension.DimensionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 表示済みの構造物開始チャンクをワールド・構造物ごとにバイナリファイルへ保存する
+// ファイルはヘッダー（マジック・版・シード）の後にチャンク座標のlongを追記していくだけの形式
+final class DiscoveredStructureStore {
+	private static final int MAGIC = 0x4E534B53;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+	private static final String DIRECTORY_NAME = "nether-search";
+	private static final Map<StoreKey, ChunkSet> SETS = new ConcurrentHashMap<>();
+	private static volatile Path worldRoot;
+
+	private DiscoveredStructureStore() {
+	}
+
+	static void open(MinecraftServer server) {
+		close();
+		worldRoot = server.getSavePath(WorldSavePath.ROOT);
+	}
+
+	static void close() {
+		for (ChunkSet set : SETS.values()) {
+			set.close();
+		}
+		SETS.clear();
+		worldRoot = null;
+	}
+
+	static boolean isKnown(ServerWorld world, Identifier structureId, long chunkPos) {
+		return setFor(world, structureId).contains(chunkPos);
+	}
+
+	static void markKnown(ServerWorld world, Identifier structureId, long chunkPos) {
+		setFor(world, structureId).add(chunkPos);
+	}
+
+	private static ChunkSet setFor(ServerWorld world, Identifier structureId) {
+		StoreKey key = new StoreKey(world.getRegistryKey(), structureId);
+		return SETS.computeIfAbsent(key, ignored -> new ChunkSet(resolveFile(key), world.getSeed()));
+	}
+
+	private static Path resolveFile(StoreKey key) {
+		Path root = worldRoot;
+		if (root == null) {
+			return null;
+		}
+		Path dimensionDir = DimensionType.getSaveDirectory(key.worldKey(), root);
+		String fileName = key.structureId().getNamespace() + "_" + key.structureId().getPath().replace('/', '_') + ".bin";
+		return dimensionDir.resolve("data").resolve(DIRECTORY_NAME).resolve(fileName);
+	}
+
+	private record StoreKey(RegistryKey<World> worldKey, Identifier structureId) {}
+
+	// 1構造物分のチャンク集合。初回アクセス時に読み込み、追加分だけを追記する
+	private static final class ChunkSet {
+		private final Path file;
+		private final long seed;
+		private LongOpenHashSet chunks;
+		private FileChannel channel;
+		private final ByteBuffer entryBuffer = ByteBuffer.allocate(Long.BYTES);
+
+		private ChunkSet(Path file, long seed) {
+			this.file = file;
+			this.seed = seed;
+		}
+
+		synchronized boolean contains(long chunkPos) {
+			return loaded().contains(chunkPos);
+		}
+
+		synchronized void add(long chunkPos) {
+			if (!loaded().add(chunkPos) || file == null) {
+				return;
+			}
+			try {
+				entryBuffer.clear();
+				entryBuffer.putLong(chunkPos).flip();
+				while (entryBuffer.hasRemaining()) {
+					openChannel().write(entryBuffer);
+				}
+			} catch (IOException e) {
+				NetherSearch.LOGGER.warn("構造物記録の書き込みに失敗しました: {}", e.toString());
+			}
+		}
+
+		synchronized void close() {
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				NetherSearch.LOGGER.debug("構造物記録ファイルを閉じる際に失敗: {}", e.toString());
+			}
+			channel = null;
+		}
+
+		private LongOpenHashSet loaded() {
+			if (chunks == null) {
+				chunks = new LongOpenHashSet();
+				if (file != null) {
+					readFile();
+				}
+			}
+			return chunks;
+		}
+
+		private void readFile() {
+			if (!Files.isRegularFile(file)) {
+				return;
+			}
+			try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(reader.size(), Integer.MAX_VALUE - 8));
+				while (buffer.hasRemaining()) {
+					if (reader.read(buffer) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+						|| buffer.getLong() != seed) {
+					// 形式やシードが異なる記録は別ワールドのものとして破棄する
+					NetherSearch.LOGGER.info("構造物記録 {} を初期化します", file.getFileName());
+					Files.delete(file);
+					return;
+				}
+				chunks.ensureCapacity(buffer.remaining() / Long.BYTES);
+				while (buffer.remaining() >= Long.BYTES) {
+					chunks.add(buffer.getLong());
+				}
+			} catch (IOException e) {
+				NetherSearch.LOGGER.warn("構造物記録の読み込みに失敗しました: {}", e.toString());
+			}
+		}
+
+		private FileChannel openChannel() throws IOException {
+			if (channel != null) {
+				return channel;
+			}
+			Files.createDirectories(file.getParent());
+			boolean fresh = !Files.exists(file) || Files.size(file) < HEADER_BYTES;
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (fresh) {
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(seed).flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			} else {
+				// 途中で途切れた書き込みがあればエントリ境界まで切り詰める
+				long size = channel.size();
+				long aligned = HEADER_BYTES + ((size - HEADER_BYTES) / Long.BYTES) * Long.BYTES;
+				if (aligned != size) {
+					channel.truncate(aligned);
+				}
+				channel.position(aligned);
+			}
+			return channel;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.Block;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.Formatting;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// プレイヤー・ワールド・種類（容器・鉱石）の組ごとに独立した発光セッションを管理する
+// 期限はハッシュ化タイミングホイールで管理し、毎tickは該当スロットのセッションだけを確認する
+final class GlowSessions {
+	// 最長600秒（12000tick）でも1周あたりの件数が偏らないよう、2の累乗のスロット数にする
+	private static final int WHEEL_SLOTS = 1024;
+	private static final int WHEEL_MASK = WHEEL_SLOTS - 1;
+	private static final Map<SessionKey, Session> SESSIONS = new HashMap<>();
+	private static final List<List<Session>> WHEEL = createWheel();
+	// 位置ごとに、その位置を光らせているセッション（1つならSession、複数ならSession[]）
+	// 複数のセッションが同じチェストを光らせても、マーカーは1つだけ置く。削除の通知では該当するセッションだけに触れる
+	private static final Map<RegistryKey<World>, Long2ObjectOpenHashMap<Object>> HOLDERS = new HashMap<>();
+	// 鉱石はブロックエンティティを持たず削除の通知が来ないため、この間隔でブロックが残っているかを確かめる
+	private static final int ORE_CHECK_INTERVAL_TICKS = 10;
+
+	private GlowSessions() {
+	}
+
+	// 同じプレイヤー・同じワールドの前回の容器のセッションを置き換えて開始し、対象の容器数を返す
+	static int start(UUID owner, ServerWorld world, LongCollection positions, int durationTicks) {
+		return start(new SessionKey(owner, world.getRegistryKey(), Kind.CONTAINER), world, positions, null, durationTicks);
+	}
+
+	// 鉱石のセッションを開始する。容器のセッションとは別に持ち、前回の鉱石のセッションだけを置き換える
+	// blockでなくなった位置（採掘・爆発など）は定期的な確認で外す
+	static int startOre(UUID owner, ServerWorld world, LongCollection positions, Block block, int durationTicks) {
+		return start(new SessionKey(owner, world.getRegistryKey(), Kind.ORE), world, positions, block, durationTicks);
+	}
+
+	private static int start(SessionKey key, ServerWorld world, LongCollection positions, Block block, int durationTicks) {
+		Session previous = SESSIONS.remove(key);
+		SearchEvents.GlowBatch event = new SearchEvents.GlowBatch();
+		event.begin();
+		int count = 0;
+		int shown = 0;
+		if (!positions.isEmpty()) {
+			long expireTick = world.getServer().getTicks() + (long) durationTicks;
+			Session session = new Session(key, new LongOpenHashSet(positions), block, expireTick);
+			// 重なっている位置のマーカーを作り直さないよう、新しい参照を先に積む
+			Long2ObjectOpenHashMap<Object> holders = HOLDERS.computeIfAbsent(key.worldKey(), worldKey -> new Long2ObjectOpenHashMap<>());
+			LongIterator iterator = session.positions.iterator();
+			while (iterator.hasNext()) {
+				long pos = iterator.nextLong();
+				if (hold(holders, pos, session)) {
+					NetherSearch.showGlowMarker(world, pos);
+					shown++;
+				}
+			}
+			SESSIONS.put(key, session);
+			WHEEL.get(slotOf(expireTick)).add(session);
+			count = session.positions.size();
+		}
+		int hidden = previous != null ? release(world, previous) : 0;
+		commitBatch(event, world.getServer(), key, previous != null ? "replace" : "start", shown, hidden);
+		return count;
+	}
+
+	// 期限が来たスロットのセッションだけを終了させる
+	static void tick(MinecraftServer server) {
+		long now = server.getTicks();
+		if (now % ORE_CHECK_INTERVAL_TICKS == 0) {
+			checkOres(server);
+		}
+		List<Session> slot = WHEEL.get(slotOf(now));
+		for (int i = slot.size() - 1; i >= 0; i--) {
+			Session session = slot.get(i);
+			if (!session.ended && session.expireTick > now) {
+				// 同じスロットに入っている次の周回以降のセッション
+				continue;
+			}
+			int last = slot.size() - 1;
+			slot.set(i, slot.get(last));
+			slot.remove(last);
+			if (!session.ended) {
+				SearchEvents.GlowBatch event = new SearchEvents.GlowBatch();
+				event.begin();
+				SESSIONS.remove(session.key);
+				int hidden = release(server.getWorld(session.key.worldKey()), session);
+				commitBatch(event, server, session.key, "expire", 0, hidden);
+				notifyExpired(server, session.key.owner());
+			}
+		}
+	}
+
+	// ログアウトしたプレイヤーのセッションをすべて終了させる
+	static void endAll(MinecraftServer server, UUID owner) {
+		Iterator<Session> iterator = SESSIONS.values().iterator();
+		while (iterator.hasNext()) {
+			Session session = iterator.next();
+			if (session.key.owner().equals(owner)) {
+				SearchEvents.GlowBatch event = new SearchEvents.GlowBatch();
+				event.begin();
+				iterator.remove();
+				int hidden = release(server.getWorld(session.key.worldKey()), session);
+				commitBatch(event, server, session.key, "disconnect", 0, hidden);
+			}
+		}
+	}
+
+	// チェストが無くなった位置を、その位置を光らせているセッションから外し、マーカーを消す
+	static void onChestRemoved(ServerWorld world, long pos) {
+		Long2ObjectOpenHashMap<Object> holders = HOLDERS.get(world.getRegistryKey());
+		Object holder = holders != null ? holders.remove(pos) : null;
+		if (holder == null) {
+			return;
+		}
+		if (holder instanceof Session session) {
+			session.positions.remove(pos);
+		} else {
+			for (Session session : (Session[]) holder) {
+				session.positions.remove(pos);
+			}
+		}
+		NetherSearch.hideGlowMarker(world, pos);
+	}
+
+	// 鉱石のセッションの各位置を確かめ、別のブロックに変わった位置を外してマーカーを消す
+	// 読み込まれていないチャンクの位置は変わりようがないため、読み込まれるまで確かめない
+	private static void checkOres(MinecraftServer server) {
+		BlockPos.Mutable pos = new BlockPos.Mutable();
+		for (Session session : SESSIONS.values()) {
+			if (session.block == null) {
+				continue;
+			}
+			ServerWorld world = server.getWorld(session.key.worldKey());
+			Long2ObjectOpenHashMap<Object> holders = HOLDERS.get(session.key.worldKey());
+			if (world == null || holders == null) {
+				continue;
+			}
+			SearchEvents.GlowBatch event = null;
+			int hidden = 0;
+			LongIterator iterator = session.positions.iterator();
+			while (iterator.hasNext()) {
+				long packed = iterator.nextLong();
+				pos.set(packed);
+				if (!world.getChunkManager().isChunkLoaded(pos.getX() >> 4, pos.getZ() >> 4) || world.getBlockState(pos).isOf(session.block)) {
+					continue;
+				}
+				if (event == null) {
+					event = new SearchEvents.GlowBatch();
+					event.begin();
+				}
+				iterator.remove();
+				if (unhold(holders, packed, session)) {
+					NetherSearch.hideGlowMarker(world, packed);
+					hidden++;
+				}
+			}
+			if (event != null) {
+				commitBatch(event, server, session.key, "changed", 0, hidden);
+			}
+		}
+	}
+
+	static int sessionCount() {
+		return SESSIONS.size();
+	}
+
+	// 表示中のマーカー数（重なっている位置は1つと数える）
+	static int markerCount() {
+		int markers = 0;
+		for (Long2ObjectOpenHashMap<Object> holders : HOLDERS.values()) {
+			markers += holders.size();
+		}
+		return markers;
+	}
+
+	// 状態だけを破棄する。マーカー本体の削除は呼び出し側で行う
+	static void clearAll() {
+		SESSIONS.clear();
+		for (List<Session> slot : WHEEL) {
+			slot.clear();
+		}
+		HOLDERS.clear();
+	}
+
+	// セッションの参照を外し、最後の参照だった位置のマーカーを消す。消した数を返す
+	private static int release(ServerWorld world, Session session) {
+		session.ended = true;
+		Long2ObjectOpenHashMap<Object> holders = HOLDERS.get(session.key.worldKey());
+		if (holders == null) {
+			return 0;
+		}
+		int hidden = 0;
+		LongIterator iterator = session.positions.iterator();
+		while (iterator.hasNext()) {
+			long pos = iterator.nextLong();
+			if (unhold(holders, pos, session)) {
+				if (world != null) {
+					NetherSearch.hideGlowMarker(world, pos);
+					hidden++;
+				}
+			}
+		}
+		return hidden;
+	}
+
+	// 位置にセッションを加える。その位置の最初のセッションならtrue（マーカーを置く）
+	// 重なりはまれなため、1つのときはSessionをそのまま入れ、配列は重なったときだけ作る
+	private static boolean hold(Long2ObjectOpenHashMap<Object> holders, long pos, Session session) {
+		Object holder = holders.get(pos);
+		if (holder == null) {
+			holders.put(pos, session);
+			return true;
+		}
+		if (holder instanceof Session single) {
+			holders.put(pos, new Session[] {single, session});
+		} else {
+			Session[] many = (Session[]) holder;
+			Session[] grown = Arrays.copyOf(many, many.length + 1);
+			grown[many.length] = session;
+			holders.put(pos, grown);
+		}
+		return false;
+	}
+
+	// 位置からセッションを外す。その位置を光らせるセッションが無くなればtrue（マーカーを消す）
+	private static boolean unhold(Long2ObjectOpenHashMap<Object> holders, long pos, Session session) {
+		Object holder = holders.get(pos);
+		if (holder == session) {
+			holders.remove(pos);
+			return true;
+		}
+		if (!(holder instanceof Session[] many)) {
+			return false;
+		}
+		int index = -1;
+		for (int i = 0; i < many.length; i++) {
+			if (many[i] == session) {
+				index = i;
+				break;
+			}
+		}
+		if (index < 0) {
+			return false;
+		}
+		if (many.length == 2) {
+			holders.put(pos, many[1 - index]);
+		} else {
+			Session[] shrunk = new Session[many.length - 1];
+			System.arraycopy(many, 0, shrunk, 0, index);
+			System.arraycopy(many, index + 1, shrunk, index, many.length - index - 1);
+			holders.put(pos, shrunk);
+		}
+		return false;
+	}
+
+	private static void commitBatch(SearchEvents.GlowBatch event, MinecraftServer server, SessionKey key, String action, int shown, int hidden) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.player = SearchEvents.playerName(server, key.owner());
+			event.world = key.worldKey().getValue().toString();
+			event.kind = key.kind().label;
+			event.action = action;
+			event.shown = shown;
+			event.hidden = hidden;
+			event.commit();
+		}
+	}
+
+	private static void notifyExpired(MinecraftServer server, UUID owner) {
+		ServerPlayerEntity player = server.getPlayerManager().getPlayer(owner);
+		if (player != null) {
+			player.sendMessage(Text.translatable("message.nether_search.glow_cleared").formatted(Formatting.YELLOW), false);
+		}
+	}
+
+	private static int slotOf(long tick) {
+		return (int) (tick & WHEEL_MASK);
+	}
+
+	private static List<List<Session>> createWheel() {
+		List<List<Session>> wheel = new ArrayList<>(WHEEL_SLOTS);
+		for (int i = 0; i < WHEEL_SLOTS; i++) {
+			wheel.add(new ArrayList<>());
+		}
+		return wheel;
+	}
+
+	private enum Kind {
+		CONTAINER("container"),
+		ORE("ore");
+
+		private final String label;
+
+		Kind(String label) {
+			this.label = label;
+		}
+	}
+
+	private record SessionKey(UUID owner, RegistryKey<World> worldKey, Kind kind) {}
+
+	private static final class Session {
+		private final SessionKey key;
+		private final LongOpenHashSet positions;
+		// 鉱石のセッションで、残っているかを確かめるブロック（容器のセッションではnull）
+		private final Block block;
+		private final long expireTick;
+		// 置き換え・ログアウトで終了したセッションは、ホイールからは次に該当スロットを見たときに外す
+		private boolean ended;
+
+		private Session(SessionKey key, LongOpenHashSet positions, Block block, long expireTick) {
+			this.key = key;
+			this.positions = positions;
+			this.block = block;
+			this.expireTick = expireTick;
+		}
+	}
+}
@@ -2,18 +2,25 @@ package chihalu.nether.search;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
-import com.mojang.datafixers.util.Either;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
 import com.mojang.datafixers.util.Pair;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.entity.event.v1.ServerPlayerEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerBlockEntityEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerEntityEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
-import net.fabricmc.fabric.api.event.player.PlayerBlockBreakEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
-import net.minecraft.block.entity.BlockEntity;
-import net.minecraft.block.entity.ChestBlockEntity;
+import net.minecraft.block.Block;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.argument.IdentifierArgumentType;
+import net.minecraft.command.argument.RegistryPredicateArgumentType;
+import net.minecraft.entity.Entity;
 import net.minecraft.entity.decoration.ArmorStandEntity;
-import net.minecraft.registry.RegistryEntryLookup;
+import net.minecraft.registry.Registries;
 import net.minecraft.registry.RegistryKey;
 import net.minecraft.registry.RegistryKeys;
 import net.minecraft.registry.RegistryWrapper;
@@ -22,7 +29,6 @@ import net.minecraft.registry.entry.RegistryEntryList;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.server.world.ServerChunkManager;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.structure.NetherFortressGenerator;
@@ -43,30 +49,27 @@ import net.minecraft.util.math.BlockBox;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.Vec3d;
-import net.minecraft.util.math.Box;
-import net.minecraft.world.border.WorldBorder;
+import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.WorldChunk;
-import net.minecraft.world.gen.StructureAccessor;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
 import net.minecraft.world.gen.structure.Structure;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
+import java.util.PriorityQueue;
 
 public class NetherSearch implements ModInitializer {
 	public static final String MOD_ID = "nether-search";
@@ -74,48 +77,100 @@ public class NetherSearch implements ModInitializer {
 	private static final int CHEST_GLOW_RADIUS = 96;
 	private static final int MIN_CHEST_RADIUS = 16;
 	private static final int MAX_CHEST_RADIUS = 192;
+	// 保存済みチャンクも含めて数える監査用の範囲（ブロック）
+	private static final int DEFAULT_AUDIT_RADIUS = 256;
+	private static final int MAX_AUDIT_RADIUS = 1024;
 	private static final int DEFAULT_GLOW_SECONDS = 60;
 	private static final int MAX_GLOW_SECONDS = 60 * 10;
-	private static final List<ArmorStandEntity> ACTIVE_MARKERS = new ArrayList<>();
+	// /ns ore の範囲（ブロック）と、発光させる最寄りの件数の上限
+	private static final int DEFAULT_ORE_RADIUS = 64;
+	private static final int MAX_ORE_RADIUS = 128;
+	private static final int MAX_ORE_GLOW = 256;
+	// 構造物検索で候補を列挙する最大距離（ブロック）
+	private static final int MAX_SEARCH_DISTANCE = 8192;
+	// 構造物のピースは開始チャンクから8チャンク以内に収まるため、代表座標と開始チャンク中心の水平距離はこれを超えない
+	private static final double STRUCTURE_REACH_BLOCKS = Math.sqrt(2.0) * (8 * 16 + 16);
+	// 同じ区画（ブロック）から同じ条件で実行された検索は、1回の計算を共有する
+	private static final int SHARED_SEARCH_CELL_BLOCKS = 32;
 	private static boolean boundingBoxWarningIssued = false;
-	private static final Map<String, Set<Long>> FOUND_STRUCTURE_CHUNKS = new HashMap<>();
-	private static final Map<GlowKey, ArmorStandEntity> ACTIVE_GLOW_MARKERS = new HashMap<>();
+	// アーマースタンド方式のマーカーをワールドごとにブロック座標(long)で引けるようにする
+	private static final Map<RegistryKey<World>, Long2ObjectOpenHashMap<ArmorStandEntity>> ACTIVE_GLOW_MARKERS = new HashMap<>();
 	private static final String GLOW_MARKER_TAG = "nether_search:glow_marker";
-	private static boolean needsMarkerRefresh = true;
-	private static long glowExpireTick = -1;
-	private static RegistryKey<World> glowWorldKey = null;
+	// 既定ではパケットだけの仮想マーカーを使い、-Dnether-search.glowMarkers=entity で従来のアーマースタンドに戻せる
+	private static final boolean VIRTUAL_GLOW_MARKERS = !"entity".equalsIgnoreCase(System.getProperty("nether-search.glowMarkers", "virtual"));
 	// ピグリン要塞の種別テキストキー（翻訳用）を定数化
-	private static final String BASTION_TYPE_TREASURE_KEY = "structure_type.bastion.treasure";
-	private static final String BASTION_TYPE_BRIDGE_KEY = "structure_type.bastion.bridge";
-	private static final String BASTION_TYPE_HOUSING_KEY = "structure_type.bastion.housing";
-	private static final String BASTION_TYPE_HOGLIN_KEY = "structure_type.bastion.hoglin";
+	static final String BASTION_TYPE_TREASURE_KEY = "structure_type.bastion.treasure";
+	static final String BASTION_TYPE_BRIDGE_KEY = "structure_type.bastion.bridge";
+	static final String BASTION_TYPE_HOUSING_KEY = "structure_type.bastion.housing";
+	static final String BASTION_TYPE_HOGLIN_KEY = "structure_type.bastion.hoglin";
 
 	public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
 
 	@Override
 	public void onInitialize() {
 		LOGGER.info("Loading Nether Search command helpers");
+		VersionAdapter.probe();
 
 		CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) ->
 				registerCommands(dispatcher, "ns")
 		);
 
-		PlayerBlockBreakEvents.AFTER.register((world, player, pos, state, blockEntity) -> {
-			if (world instanceof ServerWorld serverWorld) {
-				handleChestBreak(serverWorld, pos);
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+			ServerPlayerEntity player = handler.getPlayer();
+			server.execute(() -> {
+				VirtualGlowMarkers.onDisconnect(player);
+				GlowSessions.endAll(server, player.getUuid());
+			});
+		});
+		ServerPlayerEvents.AFTER_RESPAWN.register((oldPlayer, newPlayer, alive) -> VirtualGlowMarkers.onRespawn(newPlayer));
+		ServerLifecycleEvents.SERVER_STARTING.register(server -> {
+			DiscoveredStructureStore.open(server);
+			StructureIndex.open(server);
+			resetGlowState(server);
+		});
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			BastionTypeTable.rebuild(server);
+			BackgroundIndexer.start(server);
+		});
+		ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, resourceManager, success) -> {
+			if (success) {
+				BastionTypeTable.rebuild(server);
 			}
 		});
-		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> clearGlowMarkers(server));
-		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) ->
-				server.execute(() -> {
-					if (server.getPlayerManager().getPlayerList().isEmpty()) {
-						clearGlowMarkers(server);
-					}
-				}));
-		ServerLifecycleEvents.SERVER_STARTING.register(NetherSearch::resetGlowState);
-		ServerLifecycleEvents.SERVER_STOPPING.register(NetherSearch::resetGlowState);
-		ServerLifecycleEvents.SERVER_STOPPED.register(NetherSearch::resetGlowState);
-		ServerTickEvents.END_WORLD_TICK.register(NetherSearch::handleGlowCleanup);
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			SearchJobs.shutdown();
+			ChunkAcquisition.clear();
+			BackgroundIndexer.stop();
+			resetGlowState(server);
+		});
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+			resetGlowState(server);
+			DiscoveredStructureStore.close();
+			StructureIndex.close();
+			ChestIndex.clearAll();
+			BastionTypeTable.clear();
+			RateLimits.clear();
+			LOGGER.info("検索統計: {}", SearchMetrics.describe());
+			SearchMetrics.reset();
+			SearchCache.clear();
+		});
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			long startNanos = System.nanoTime();
+			GlowSessions.tick(server);
+			SearchMetrics.recordGlowUpkeep(startNanos);
+			SearchMetrics.tick(server);
+		});
+		ServerTickEvents.END_WORLD_TICK.register(world -> {
+			long startNanos = System.nanoTime();
+			VirtualGlowMarkers.tick(world);
+			SearchMetrics.recordGlowUpkeep(startNanos);
+		});
+		// 他の処理より後に登録し、tick全体の処理が終わった後の余り時間で索引を進める
+		ServerTickEvents.START_SERVER_TICK.register(BackgroundIndexer::onTickStart);
+		ServerTickEvents.END_SERVER_TICK.register(BackgroundIndexer::onTickEnd);
+		ServerBlockEntityEvents.BLOCK_ENTITY_LOAD.register(ChestIndex::onBlockEntityLoad);
+		ServerEntityEvents.ENTITY_LOAD.register(NetherSearch::handleEntityLoad);
+		ServerBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register(ChestIndex::onBlockEntityUnload);
 	}
 
 	private static void registerCommands(CommandDispatcher<ServerCommandSource> dispatcher, String literalName) {
@@ -123,163 +178,495 @@ public class NetherSearch implements ModInitializer {
 				CommandManager.literal(literalName)
 						.requires(source -> true)
 						.then(CommandManager.literal("search")
+								.then(CommandManager.literal("cancel")
+										.executes(ctx -> executeSearchCancel(ctx.getSource())))
 								.then(CommandManager.literal("new")
-										.then(CommandManager.literal("fortress")
-												.executes(ctx -> executeLocateList(ctx.getSource(), "fortress", 1, true))
-												.then(CommandManager.argument("count", IntegerArgumentType.integer(1, 20))
-														.executes(ctx -> executeLocateList(ctx.getSource(), "fortress", IntegerArgumentType.getInteger(ctx, "count"), true))))
-										.then(CommandManager.literal("bastion_remnant")
-												.executes(ctx -> executeLocateList(ctx.getSource(), "bastion_remnant", 1, true))
-												.then(CommandManager.argument("count", IntegerArgumentType.integer(1, 20))
-														.executes(ctx -> executeLocateList(ctx.getSource(), "bastion_remnant", IntegerArgumentType.getInteger(ctx, "count"), true)))))
-								.then(CommandManager.literal("fortress")
-										.executes(ctx -> executeLocateList(ctx.getSource(), "fortress", 1, false))
-										.then(CommandManager.argument("count", IntegerArgumentType.integer(1, 20))
-												.executes(ctx -> executeLocateList(ctx.getSource(), "fortress", IntegerArgumentType.getInteger(ctx, "count"), false))))
-								.then(CommandManager.literal("bastion_remnant")
-										.executes(ctx -> executeLocateList(ctx.getSource(), "bastion_remnant", 1, false))
-										.then(CommandManager.argument("count", IntegerArgumentType.integer(1, 20))
-												.executes(ctx -> executeLocateList(ctx.getSource(), "bastion_remnant", IntegerArgumentType.getInteger(ctx, "count"), false)))))
+										.then(withSearchCount(CommandManager.literal("fortress"), ctx -> "fortress", true))
+										.then(withSearchCount(CommandManager.literal("bastion_remnant"), ctx -> "bastion_remnant", true))
+										.then(withSearchCount(CommandManager.literal(StructureTargets.ALL), ctx -> StructureTargets.ALL, true))
+										.then(withSearchCount(CommandManager.argument("structure", RegistryPredicateArgumentType.registryPredicate(RegistryKeys.STRUCTURE)),
+												ctx -> structureSpec(ctx, "structure"), true)))
+								.then(withSearchCount(CommandManager.literal("fortress"), ctx -> "fortress", false))
+								.then(withSearchCount(CommandManager.literal("bastion_remnant"), ctx -> "bastion_remnant", false))
+								.then(withSearchCount(CommandManager.literal(StructureTargets.ALL), ctx -> StructureTargets.ALL, false))
+								.then(withSearchCount(CommandManager.argument("structure", RegistryPredicateArgumentType.registryPredicate(RegistryKeys.STRUCTURE)),
+										ctx -> structureSpec(ctx, "structure"), false)))
 						.then(CommandManager.literal("chest")
-								.executes(ctx -> executeChestCount(ctx.getSource(), CHEST_GLOW_RADIUS))
+								.executes(ctx -> executeChestCount(ctx.getSource(), CHEST_GLOW_RADIUS, ContainerTypes.Filter.CHESTS))
+								.then(CommandManager.literal("audit")
+										.executes(ctx -> executeChestAudit(ctx.getSource(), DEFAULT_AUDIT_RADIUS))
+										.then(CommandManager.argument("range", IntegerArgumentType.integer(MIN_CHEST_RADIUS, MAX_AUDIT_RADIUS))
+												.executes(ctx -> executeChestAudit(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range")))))
 								.then(CommandManager.argument("range", IntegerArgumentType.integer(MIN_CHEST_RADIUS))
-										.executes(ctx -> executeChestCount(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range")))))
+										.executes(ctx -> executeChestCount(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range"), ContainerTypes.Filter.CHESTS))
+										.then(CommandManager.argument("types", StringArgumentType.greedyString())
+												.suggests(ContainerTypes::suggest)
+												.executes(ctx -> executeChestCount(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range"),
+														parseContainerTypes(ctx))))))
 						.then(CommandManager.literal("glowing_chest")
-								.executes(ctx -> executeGlowChests(ctx.getSource(), CHEST_GLOW_RADIUS, DEFAULT_GLOW_SECONDS))
+								.executes(ctx -> executeGlowChests(ctx.getSource(), CHEST_GLOW_RADIUS, DEFAULT_GLOW_SECONDS, ContainerTypes.Filter.CHESTS))
 								.then(CommandManager.argument("range", IntegerArgumentType.integer(MIN_CHEST_RADIUS))
-										.executes(ctx -> executeGlowChests(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range"), DEFAULT_GLOW_SECONDS))
+										.executes(ctx -> executeGlowChests(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "range"), DEFAULT_GLOW_SECONDS,
+												ContainerTypes.Filter.CHESTS))
 										.then(CommandManager.argument("duration_seconds", IntegerArgumentType.integer(1, MAX_GLOW_SECONDS))
 												.executes(ctx -> executeGlowChests(
 														ctx.getSource(),
 														IntegerArgumentType.getInteger(ctx, "range"),
-														IntegerArgumentType.getInteger(ctx, "duration_seconds"))))))
+														IntegerArgumentType.getInteger(ctx, "duration_seconds"),
+														ContainerTypes.Filter.CHESTS))
+												.then(CommandManager.argument("types", StringArgumentType.greedyString())
+														.suggests(ContainerTypes::suggest)
+														.executes(ctx -> executeGlowChests(
+																ctx.getSource(),
+																IntegerArgumentType.getInteger(ctx, "range"),
+																IntegerArgumentType.getInteger(ctx, "duration_seconds"),
+																parseContainerTypes(ctx)))))))
+						.then(CommandManager.literal("ore")
+								.then(CommandManager.argument("block", IdentifierArgumentType.identifier())
+										.suggests((ctx, builder) -> CommandSource.suggestIdentifiers(Registries.BLOCK.getIds(), builder))
+										.executes(ctx -> executeOreScan(ctx.getSource(), IdentifierArgumentType.getIdentifier(ctx, "block"), DEFAULT_ORE_RADIUS, 0))
+										.then(CommandManager.argument("range", IntegerArgumentType.integer(MIN_CHEST_RADIUS, MAX_ORE_RADIUS))
+												.executes(ctx -> executeOreScan(ctx.getSource(), IdentifierArgumentType.getIdentifier(ctx, "block"),
+														IntegerArgumentType.getInteger(ctx, "range"), 0))
+												.then(CommandManager.literal("glow")
+														.executes(ctx -> executeOreScan(ctx.getSource(), IdentifierArgumentType.getIdentifier(ctx, "block"),
+																IntegerArgumentType.getInteger(ctx, "range"), DEFAULT_GLOW_SECONDS))
+														.then(CommandManager.argument("duration_seconds", IntegerArgumentType.integer(1, MAX_GLOW_SECONDS))
+																.executes(ctx -> executeOreScan(ctx.getSource(), IdentifierArgumentType.getIdentifier(ctx, "block"),
+																		IntegerArgumentType.getInteger(ctx, "range"), IntegerArgumentType.getInteger(ctx, "duration_seconds"))))))))
+						.then(CommandManager.literal("stats")
+								.executes(ctx -> executeStats(ctx.getSource())))
 						.then(CommandManager.literal("exp")
 								.executes(ctx -> showCommandUsage(ctx.getSource())))
 		);
 	}
 
-private static int executeLocateList(ServerCommandSource source, String structureId, int count, boolean newOnly) {
+	// 検索対象のノードに、件数を省略した場合と指定した場合の実行処理を付ける
+	private static <T extends ArgumentBuilder<ServerCommandSource, T>> T withSearchCount(T node, SearchSpec spec, boolean newOnly) {
+		return node
+				.executes(ctx -> executeLocateList(ctx.getSource(), spec.get(ctx), 1, newOnly))
+				.then(CommandManager.argument("count", IntegerArgumentType.integer(1, 20))
+						.executes(ctx -> executeLocateList(ctx.getSource(), spec.get(ctx), IntegerArgumentType.getInteger(ctx, "count"), newOnly)));
+	}
+
+	// 構造物IDまたは#タグの引数を、StructureTargets.resolveが受け付ける文字列にする
+	private static String structureSpec(CommandContext<ServerCommandSource> ctx, String name) {
+		RegistryPredicateArgumentType.RegistryPredicate<?> predicate = ctx.getArgument(name, RegistryPredicateArgumentType.RegistryPredicate.class);
+		return predicate.getKey().map(key -> key.getValue().toString(), tag -> "#" + tag.id());
+	}
+
+	// 容器の種類の引数を解釈する。知らない名前があればnull（実行側でエラーを返す）
+	private static ContainerTypes.Filter parseContainerTypes(CommandContext<ServerCommandSource> ctx) {
+		return ContainerTypes.parse(StringArgumentType.getString(ctx, "types"));
+	}
+
+	@FunctionalInterface
+	private interface SearchSpec {
+		String get(CommandContext<ServerCommandSource> ctx);
+	}
+
+private static int executeLocateList(ServerCommandSource source, String spec, int count, boolean newOnly) {
 		try {
+			if (!checkRateLimit(source, RateLimits.SEARCH_COST)) {
+				return 0;
+			}
+			long startNanos = System.nanoTime();
 			ServerWorld world = source.getWorld();
-			Identifier id = Identifier.ofVanilla(structureId);
 			RegistryWrapper.WrapperLookup registryLookup = source.getRegistryManager();
 			// バージョン差異があるためリフレクションで構造物レジストリを解決
-			RegistryEntryLookup<Structure> structureLookup = resolveStructureLookup(registryLookup);
-			RegistryKey<Structure> key = RegistryKey.of(RegistryKeys.STRUCTURE, id);
-			Optional<RegistryEntry.Reference<Structure>> structureEntry = structureLookup.getOptional(key);
-			if (structureEntry.isEmpty()) {
-				source.sendError(message("structure_not_found", structureId));
+			RegistryWrapper.Impl<Structure> structureLookup = resolveStructureLookup(registryLookup);
+			List<RegistryEntry<Structure>> structures = StructureTargets.resolve(structureLookup, spec);
+			if (structures.isEmpty()) {
+				source.sendError(message("structure_not_found", spec));
 				return 0;
 			}
 
-			RegistryEntryList<Structure> targetList = RegistryEntryList.of(structureEntry.get());
+			RegistryEntryList<Structure> targetList = RegistryEntryList.of(structures);
 			BlockPos originPos = BlockPos.ofFloored(source.getPosition());
 			Vec3d originVec = source.getPosition();
 
-			StructureAccessor accessor = world.getStructureAccessor();
-			StructureStart currentStart = accessor.getStructureContaining(originPos, targetList);
+			StructureStart currentStart = world.getStructureAccessor().getStructureContaining(originPos, targetList);
 			BlockBox currentBox = extractBoundingBox(currentStart);
 			ChunkPos currentChunk = extractChunkPos(currentStart);
 
-			int[] offsets = {0, 512, -512, 1024, -1024, 1536, -1536, 2048, -2048, 2560, -2560, 3072, -3072, 4096, -4096};
-			Set<ChunkPos> seen = new HashSet<>();
-			List<StructureResult> found = new ArrayList<>();
+			// 同じ配置を共有する構造物は1つのグループにまとめ、1回の列挙で確認する
+			List<StructureTargets.Group> groups = StructureTargets.group(world, structures);
+			if (groups.isEmpty()) {
+				source.sendFeedback(() -> message("no_structures_found"), false);
+				return 0;
+			}
+			Text structureName = getSearchDisplayName(spec);
+
+			// 重い探索はワーカーへ任せ、コマンド自体はすぐに戻る
+			// 近くで同じ条件の検索が実行中なら、その結果を共有して距離だけ自分の位置から計算する
+			SharedSearchKey shareKey = new SharedSearchKey(world.getRegistryKey(), spec, count, newOnly,
+					Math.floorDiv(originPos.getX(), SHARED_SEARCH_CELL_BLOCKS), Math.floorDiv(originPos.getZ(), SHARED_SEARCH_CELL_BLOCKS));
+			long dispatchNanos = System.nanoTime() - startNanos;
+			SearchJobs.StartResult started = SearchJobs.submit(source, shareKey, job -> {
+				try {
+					runLocateSweep(job, world, structureName, groups, originPos, originVec, currentBox, currentChunk, count, newOnly);
+				} finally {
+					SearchMetrics.recordCommand(SearchMetrics.Command.SEARCH, startNanos);
+					SearchMetrics.recordServerThread(SearchMetrics.Command.SEARCH, dispatchNanos + job.serverNanos());
+				}
+			});
+			if (!admitted(source, started, RateLimits.SEARCH_COST)) {
+				return 0;
+			}
+			if (started == SearchJobs.StartResult.JOINED) {
+				source.sendFeedback(() -> message("search_joined", structureName).formatted(Formatting.GRAY), false);
+				return 1;
+			}
+			source.sendFeedback(() -> message("search_started", structureName).formatted(Formatting.GRAY), false);
+			return 1;
+		} catch (Exception e) {
+			LOGGER.error("構造物検索中にエラー", e);
+			source.sendError(message("structure_search_error", e.getClass().getSimpleName()));
+			return 0;
+		}
+	}
 
-			for (int dx : offsets) {
-				for (int dz : offsets) {
-					if (found.size() >= count) {
-						break;
-					}
-					BlockPos searchPos = originPos.add(dx, 0, dz);
-					int maxOffset = Math.max(Math.abs(dx), Math.abs(dz));
-					int chunkRadius = Math.max(128, (maxOffset >> 4) + 128);
-					Pair<BlockPos, RegistryEntry<Structure>> result = world.getChunkManager()
-							.getChunkGenerator()
-							.locateStructure(world, targetList, searchPos, chunkRadius, false);
-					if (result == null) {
-						continue;
-					}
-					BlockPos located = result.getFirst();
-					ChunkPos chunkPos = new ChunkPos(located);
-					if (!seen.add(chunkPos)) {
-						continue;
-					}
-					if (newOnly && isStructureKnown(structureId, chunkPos)) {
-						continue;
-					}
+	// ワーカースレッド上で配置候補を近い順に確認し、ワールドへの問い合わせだけをサーバースレッドへ戻す
+	// 複数の配置グループの候補を1つの列挙にまとめ、各候補はそのグループの構造物だけで確認する
+	private static void runLocateSweep(SearchJobs.SearchJob job, ServerWorld world, Text structureName, List<StructureTargets.Group> groups,
+			BlockPos originPos, Vec3d originVec, BlockBox currentBox, ChunkPos currentChunk, int count, boolean newOnly) {
+		// 確認済みで、まだ最寄りと確定していない結果（実際の座標までの距離順）
+		PriorityQueue<StructureResult> pending = new PriorityQueue<>(
+				Comparator.comparingDouble((StructureResult result) -> originVec.squaredDistanceTo(Vec3d.ofCenter(result.pos()))));
+		// 複数の構造物を対象にした検索では、各行に構造物名を付ける
+		boolean labelStructures = groups.size() > 1 || groups.get(0).size() > 1;
+		ResultStream stream = new ResultStream(job, structureName, labelStructures);
+		String requester = job.source().getName();
+		ChunkGenerator generator = world.getChunkManager().getChunkGenerator();
+		StructurePlacementEnumerator enumerator = new StructurePlacementEnumerator(StructureTargets.grids(groups),
+				originPos.getX(), originPos.getZ(), MAX_SEARCH_DISTANCE);
+		// 全配置候補を記録済みの範囲では、空間索引から存在する構造物だけを近い順に取り出し、配置候補の確認を省く
+		KnownStructures known = KnownStructures.open(world, groups, originPos, newOnly);
+		// 確認し終えた候補のうち最も遠いものの距離（二乗）。これより近い候補はすべて索引に記録されている
+		long processedSq = known.limitSq();
+		boolean exhausted = false;
+
+		while (stream.sent() < count) {
+			job.checkCancelled();
+			boolean hasCandidate = known.next(enumerator);
+			// 以降の候補はこの候補より遠いため、下限より近い確認済みの結果は順位が確定している
+			double bound = hasCandidate ? Math.sqrt(known.distanceSq()) - STRUCTURE_REACH_BLOCKS : Double.POSITIVE_INFINITY;
+			while (!pending.isEmpty() && stream.sent() < count
+					&& originVec.distanceTo(Vec3d.ofCenter(pending.peek().pos())) <= bound) {
+				StructureResult next = pending.poll();
+				stream.add(next);
+				markStructureKnown(world, next.structureId(), next.chunkPos());
+			}
+			stream.flush();
+			if (!hasCandidate) {
+				exhausted = true;
+				break;
+			}
+			if (stream.sent() >= count) {
+				break;
+			}
+			long candidateChunk = known.chunk();
+			ChunkPos chunkPos = new ChunkPos(candidateChunk);
+			StructureTargets.Group group = groups.get(known.groupIndex());
+			// 現在いる構造物も確認だけはして索引へ記録し、確認済みの範囲に穴を空けない
+			StructureTargets.Found found = locateInGroup(job, world, generator, group, chunkPos, requester);
+			processedSq = Math.max(processedSq, known.distanceSq());
+			if (found == null || (currentChunk != null && currentChunk.equals(chunkPos))) {
+				continue;
+			}
+			String structureId = group.structureIds().get(found.index());
+			if (newOnly && isStructureKnown(world, structureId, chunkPos)) {
+				continue;
+			}
+			RegistryEntryList<Structure> single = group.single(found.index());
+			// 保存済みのチャンクはリージョンファイルから直接解決し、未保存のものだけチャンクを取得して解決する
+			StructureLocation resolvedLocation = SearchCache.resolve(world.getRegistryKey(), structureId, candidateChunk,
+					() -> StructureIndex.resolve(world, structureId, candidateChunk, () -> {
+						StructureLocation stored = readStoredStructure(world, chunkPos, single, structureId);
+						if (stored != null) {
+							SearchMetrics.STORED_RESOLVES.increment();
+							return stored;
+						}
+						SearchEvents.Resolve event = new SearchEvents.Resolve();
+						event.begin();
+						StructureLocation resolved = resolveStructureCenter(job, world, chunkPos, single, structureId, event);
+						event.end();
+						if (event.shouldCommit()) {
+							event.player = requester;
+							event.structure = structureId;
+							event.chunkX = chunkPos.x;
+							event.chunkZ = chunkPos.z;
+							event.resolved = resolved != null;
+							event.commit();
+						}
+						return resolved;
+					}));
+			StructureResult confirmed = confirmCandidate(chunkPos, structureId, found.pos(), resolvedLocation, currentBox);
+			if (confirmed == null) {
+				continue;
+			}
+			pending.add(confirmed);
+		}
 
-					// 種類情報付きで座標を補正
-					StructureLocation resolvedLocation = resolveStructureCenter(world, chunkPos, targetList, structureId);
-					BlockPos candidatePos = resolvedLocation != null ? resolvedLocation.pos() : located;
-					String structureTypeKey = resolvedLocation != null ? resolvedLocation.structureTypeKey() : null;
+		// 確認し終えた範囲を記録し、以降の検索はその内側を空間索引から答える
+		known.markCovered(exhausted ? MAX_SEARCH_DISTANCE : Math.sqrt((double) processedSq) - 1.0);
+		// 相乗りの受付を締め切ってから最後の送信を行い、途中から加わった送り先にも全件を届ける
+		job.closeSubscriptions();
+		stream.flush();
+		if (stream.sent() == 0) {
+			job.sendFeedback(message("no_structures_found"));
+			return;
+		}
+		job.sendFeedback(message("structure_list_header", stream.sent(), structureName).formatted(Formatting.LIGHT_PURPLE));
+	}
 
-					if (currentChunk != null && currentChunk.equals(chunkPos)) {
-						continue;
-					}
-					if (currentBox != null && currentBox.contains(candidatePos)) {
-						continue;
-					}
+	// 半径0の検索で候補セルにグループ内のどの構造物があるかを確認し、バイオーム条件などはバニラ側の判定に任せる
+	// キャッシュか索引に全構造物分の記録があればワールドへ問い合わせず、無ければ1回のlocateで全構造物分を記録する
+	private static StructureTargets.Found locateInGroup(SearchJobs.SearchJob job, ServerWorld world, ChunkGenerator generator,
+			StructureTargets.Group group, ChunkPos chunkPos, String requester) {
+		long startChunk = chunkPos.toLong();
+		for (int i = 0; i < group.size(); i++) {
+			int index = i;
+			String structureId = group.structureIds().get(i);
+			BlockPos located = StructureIndex.locate(world, structureId, startChunk, () -> job.callOnServer(() -> {
+				StructureTargets.Found found = StructureTargets.locate(world, generator, group, chunkPos, requester);
+				return found != null && found.index() == index ? found.pos() : null;
+			}));
+			if (located != null) {
+				return new StructureTargets.Found(i, located);
+			}
+		}
+		return null;
+	}
 
-					StructureStart locatedStart = accessor.getStructureContaining(candidatePos, targetList);
-					BlockBox locatedBox = extractBoundingBox(locatedStart);
-					ChunkPos locatedChunk = extractChunkPos(locatedStart);
+	// 検索対象の全構造物について記録済みの範囲を求め、その内側の候補を空間索引から、外側を配置候補の列挙から返す
+	// 両者は距離（開始チャンク中心までの二乗）limitSqで分け、同じ候補を二重に返さない
+	private static final class KnownStructures {
+		private final ServerWorld world;
+		private final List<String> structureIds;
+		private final int[] groupIndexes;
+		private final BlockPos originPos;
+		private final long limitSq;
+		private final StructureGrid.Cursor cursor = new StructureGrid.Cursor();
+		// 現在の候補が索引から取り出したもの（cursorが指している）か、列挙の候補（enumerated）か
+		private boolean indexed;
+		private StructurePlacementEnumerator.Candidate enumerated;
+
+		private KnownStructures(ServerWorld world, List<String> structureIds, int[] groupIndexes, StructureGrid[] grids,
+				BlockPos originPos, long limitSq, boolean unvisitedOnly) {
+			this.world = world;
+			this.structureIds = structureIds;
+			this.groupIndexes = groupIndexes;
+			this.originPos = originPos;
+			this.limitSq = limitSq;
+			cursor.reset(grids, originPos.getX(), originPos.getZ(), limitSq, unvisitedOnly);
+		}
 
-					boolean sameStructure = false;
-					if (currentBox != null && locatedBox != null) {
-						sameStructure = currentBox.equals(locatedBox);
-					} else if (currentChunk != null && locatedChunk != null) {
-						sameStructure = currentChunk.equals(locatedChunk);
-					}
+		private static KnownStructures open(ServerWorld world, List<StructureTargets.Group> groups, BlockPos originPos, boolean unvisitedOnly) {
+			List<String> structureIds = new ArrayList<>();
+			List<Integer> groupIndexes = new ArrayList<>();
+			for (int i = 0; i < groups.size(); i++) {
+				for (String structureId : groups.get(i).structureIds()) {
+					structureIds.add(structureId);
+					groupIndexes.add(i);
+				}
+			}
+			StructureGrid[] grids = new StructureGrid[structureIds.size()];
+			double radius = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < grids.length; i++) {
+				grids[i] = StructureIndex.gridFor(world, structureIds.get(i));
+				radius = Math.min(radius, StructureIndex.coveredRadius(world, structureIds.get(i), originPos.getX(), originPos.getZ()));
+			}
+			long limitSq = radius > 0.0 && radius != Double.POSITIVE_INFINITY ? (long) (radius * radius) : 0L;
+			int[] indexes = groupIndexes.stream().mapToInt(Integer::intValue).toArray();
+			return new KnownStructures(world, structureIds, indexes, grids, originPos, limitSq, unvisitedOnly);
+		}
 
-					if (sameStructure) {
-						continue;
-					}
+		private long limitSq() {
+			return limitSq;
+		}
 
-					ChunkPos resultChunk = locatedChunk != null ? locatedChunk : new ChunkPos(candidatePos);
-					found.add(new StructureResult(candidatePos, resultChunk, structureTypeKey));
-					markStructureKnown(structureId, chunkPos);
+		// 次に近い候補へ進み、候補が無くなればfalseを返す。記録済みの範囲の外は列挙の候補から、範囲内のもの（索引から返した分）を除いて選ぶ
+		// 索引の候補はカーソルから直接読むため、取り出すたびにオブジェクトを作らない
+		private boolean next(StructurePlacementEnumerator enumerator) {
+			if (cursor.next()) {
+				indexed = true;
+				SearchMetrics.INDEXED_CANDIDATES.increment();
+				return true;
+			}
+			indexed = false;
+			while (true) {
+				enumerated = enumerator.next();
+				if (enumerated == null) {
+					return false;
+				}
+				if (enumerated.distanceSq() >= limitSq) {
+					return true;
 				}
 			}
+		}
 
-			if (found.isEmpty()) {
-				source.sendFeedback(() -> message("no_structures_found"), false);
-				return 0;
+		// 以下はnextがtrueを返した後の現在の候補
+		private long chunk() {
+			return indexed ? cursor.chunk() : enumerated.chunkPos();
+		}
+
+		private long distanceSq() {
+			return indexed ? cursor.distanceSq() : enumerated.distanceSq();
+		}
+
+		private int groupIndex() {
+			return indexed ? groupIndexes[cursor.gridIndex()] : enumerated.gridIndex();
+		}
+
+		private void markCovered(double radius) {
+			for (String structureId : structureIds) {
+				StructureIndex.markCovered(world, structureId, originPos.getX(), originPos.getZ(), radius);
 			}
+		}
+	}
+
+	// 確定した結果を溜め、flushごとに送り先それぞれへ未送信の行を1通のメッセージとしてまとめて送る
+	// 距離は送り先ごとの実行位置から計算する
+	private static final class ResultStream {
+		private final SearchJobs.SearchJob job;
+		private final Text structureName;
+		private final boolean labelStructures;
+		private final List<StructureResult> results = new ArrayList<>();
+
+		private ResultStream(SearchJobs.SearchJob job, Text structureName, boolean labelStructures) {
+			this.job = job;
+			this.structureName = structureName;
+			this.labelStructures = labelStructures;
+		}
+
+		private void add(StructureResult result) {
+			results.add(result);
+		}
+
+		private int sent() {
+			return results.size();
+		}
 
-			found.sort(Comparator.comparingDouble(result -> originVec.squaredDistanceTo(Vec3d.ofCenter(result.pos()))));
-			Text structureName = getStructureDisplayName(structureId);
-			MutableText header = message("structure_list_header", found.size(), structureName);
-			source.sendFeedback(() -> header.formatted(Formatting.LIGHT_PURPLE), false);
-			int index = 1;
-			for (StructureResult result : found) {
-				BlockPos pos = result.pos();
-				double distance = Math.sqrt(originVec.squaredDistanceTo(Vec3d.ofCenter(pos)));
-				MutableText distanceText = message("structure_distance", String.format("%.1f", distance)).formatted(Formatting.GRAY);
-				// 座標をクリックするとテレポートコマンドを即座にコピーできるようにイベント付きテキストを構築
-				final String teleportCommand = "/tp " + pos.getX() + " ~ " + pos.getZ();
-				final MutableText hoverHint = message("tp_clipboard_hint", teleportCommand).formatted(Formatting.GRAY);
-				MutableText coordinateText = Text.literal(pos.getX() + " / " + pos.getZ()).formatted(Formatting.YELLOW)
-						.styled(style -> applyTeleportInteractions(style, teleportCommand, hoverHint));
-				MutableText displayLine = Text.empty()
-						.append(Text.literal("[" + index + "] ").formatted(Formatting.GREEN))
-						.append(coordinateText)
-						.append(distanceText);
-				if (result.structureTypeKey() != null) {
-					// 種別ラベルを距離の後ろに追加
-					MutableText typeName = message(result.structureTypeKey()).formatted(Formatting.AQUA);
-					MutableText typeLabel = message("structure_type_label", typeName).formatted(Formatting.GRAY);
-					displayLine = displayLine.append(typeLabel);
+		private void flush() {
+			for (SearchJobs.Subscriber subscriber : job.subscribers()) {
+				int from = subscriber.delivered();
+				if (from >= results.size()) {
+					continue;
+				}
+				Vec3d originVec = subscriber.source().getPosition();
+				MutableText batch = Text.empty();
+				if (from == 0) {
+					// 最初の送信には見出しを付ける
+					batch.append(message("structure_stream_header", structureName).formatted(Formatting.LIGHT_PURPLE));
+					batch.append("\n");
 				}
-				final Text finalDisplayLine = displayLine;
-				source.sendFeedback(() -> finalDisplayLine, false);
-				index++;
+				for (int i = from; i < results.size(); i++) {
+					if (i > from) {
+						batch.append("\n");
+					}
+					batch.append(formatResultLine(i + 1, results.get(i), originVec, labelStructures));
+				}
+				subscriber.markDelivered(results.size());
+				job.sendFeedback(subscriber, batch);
 			}
-			return found.size();
-		} catch (Exception e) {
-			LOGGER.error("構造物検索中にエラー", e);
-			source.sendError(message("structure_search_error", e.getClass().getSimpleName()));
+		}
+	}
+
+	// 検索を共有できる条件（ワールド・対象・件数・未発見のみか・実行位置の区画）
+	private record SharedSearchKey(RegistryKey<World> worldKey, String spec, int count, boolean newOnly, int cellX, int cellZ) {}
+
+	// 回数制限を超えていれば、次に実行できるまでの秒数を伝えてfalseを返す
+	private static boolean checkRateLimit(ServerCommandSource source, int cost) {
+		long waitMillis = RateLimits.acquire(source, cost);
+		if (waitMillis <= 0L) {
+			return true;
+		}
+		source.sendError(message("rate_limited", (waitMillis + 999L) / 1000L));
+		return false;
+	}
+
+	// ワーカーに受け付けられなかった要求を知らせ、checkRateLimitで消費したトークンを返す。受け付けられればtrue
+	// 実行されなかった要求で回数制限に達しないよう、混雑・実行中の応答はトークンを消費しない
+	private static boolean admitted(ServerCommandSource source, SearchJobs.StartResult started, int cost) {
+		switch (started) {
+			case ALREADY_RUNNING -> source.sendError(message("search_already_running"));
+			case BUSY -> source.sendError(message("search_busy"));
+			default -> {
+				return true;
+			}
+		}
+		RateLimits.refund(source, cost);
+		return false;
+	}
+
+	// 開始チャンクに対象の構造物があるかを半径0の検索で確認する（サーバースレッドから呼び出す）
+	// 見つかった構造物が候補のチャンクから始まっていなければnull
+	static Pair<BlockPos, RegistryEntry<Structure>> locateStart(ServerWorld world, ChunkGenerator generator, RegistryEntryList<Structure> targetList,
+			ChunkPos chunkPos, String requester, String structureId) {
+		SearchMetrics.LOCATE_CALLS.increment();
+		SearchEvents.Locate event = new SearchEvents.Locate();
+		event.begin();
+		Pair<BlockPos, RegistryEntry<Structure>> result = generator.locateStructure(world, targetList, chunkPos.getStartPos(), 0, false);
+		Pair<BlockPos, RegistryEntry<Structure>> hit = result != null && chunkPos.equals(new ChunkPos(result.getFirst())) ? result : null;
+		event.end();
+		if (event.shouldCommit()) {
+			event.player = requester;
+			event.structure = structureId;
+			event.chunkX = chunkPos.x;
+			event.chunkZ = chunkPos.z;
+			event.found = hit != null;
+			event.commit();
+		}
+		return hit;
+	}
+
+	// 解決済みの座標で結果を作り、現在地の構造物と重複していないか確認する
+	private static StructureResult confirmCandidate(ChunkPos chunkPos, String structureId, BlockPos located, StructureLocation resolvedLocation, BlockBox currentBox) {
+		// 種類情報付きで座標を補正
+		BlockPos candidatePos = resolvedLocation != null ? resolvedLocation.pos() : located;
+		String structureTypeKey = resolvedLocation != null ? resolvedLocation.structureTypeKey() : null;
+
+		// 候補は構造物の開始チャンクそのものなので、現在地の開始チャンクとの比較は呼び出し側で済んでいる
+		if (currentBox != null && currentBox.contains(candidatePos)) {
+			return null;
+		}
+		return new StructureResult(candidatePos, chunkPos, structureId, structureTypeKey);
+	}
+
+	private static Text formatResultLine(int index, StructureResult result, Vec3d originVec, boolean labelStructure) {
+		BlockPos pos = result.pos();
+		double distance = Math.sqrt(originVec.squaredDistanceTo(Vec3d.ofCenter(pos)));
+		MutableText distanceText = message("structure_distance", String.format("%.1f", distance)).formatted(Formatting.GRAY);
+		// 座標をクリックするとテレポートコマンドを即座にコピーできるようにイベント付きテキストを構築
+		final String teleportCommand = "/tp " + pos.getX() + " ~ " + pos.getZ();
+		final MutableText hoverHint = message("tp_clipboard_hint", teleportCommand).formatted(Formatting.GRAY);
+		MutableText coordinateText = Text.literal(pos.getX() + " / " + pos.getZ()).formatted(Formatting.YELLOW)
+				.styled(style -> applyTeleportInteractions(style, teleportCommand, hoverHint));
+		MutableText displayLine = Text.empty()
+				.append(Text.literal("[" + index + "] ").formatted(Formatting.GREEN));
+		if (labelStructure) {
+			displayLine.append(getStructureDisplayName(result.structureId()).copy().formatted(Formatting.LIGHT_PURPLE)).append(" ");
+		}
+		displayLine = displayLine
+				.append(coordinateText)
+				.append(distanceText);
+		if (result.structureTypeKey() != null) {
+			// 種別ラベルを距離の後ろに追加
+			MutableText typeName = message(result.structureTypeKey()).formatted(Formatting.AQUA);
+			MutableText typeLabel = message("structure_type_label", typeName).formatted(Formatting.GRAY);
+			displayLine = displayLine.append(typeLabel);
+		}
+		return displayLine;
+	}
+
+	private static int executeSearchCancel(ServerCommandSource source) {
+		if (!SearchJobs.cancel(source)) {
+			source.sendError(message("search_cancel_none"));
 			return 0;
 		}
+		source.sendFeedback(() -> message("search_cancelled").formatted(Formatting.YELLOW), false);
+		return 1;
 	}
 
 	private static BlockBox extractBoundingBox(StructureStart start) {
@@ -308,31 +695,75 @@ private static int executeLocateList(ServerCommandSource source, String structur
 		}
 	}
 
-private static int executeGlowChests(ServerCommandSource source, int requestedRadius, int durationSeconds) {
+private static int executeGlowChests(ServerCommandSource source, int requestedRadius, int durationSeconds, ContainerTypes.Filter filter) {
 	int radius = validateRadius(source, requestedRadius);
-	if (radius < 0) {
+	if (radius < 0 || !validateContainerTypes(source, filter) || !checkRateLimit(source, RateLimits.GLOW_COST)) {
 		return 0;
 	}
 	int glowSeconds = validateGlowDuration(source, durationSeconds);
 	if (glowSeconds < 0) {
 		return 0;
 	}
+	long startNanos = System.nanoTime();
 	ServerWorld world = source.getWorld();
 	BlockPos center = BlockPos.ofFloored(source.getPosition());
-	clearGlowMarkers(world.getServer());
-	int count = createGlowMarkers(world, center, radius);
+	// 索引から半径内の対象の容器を1回の走査で取り出し、このプレイヤーのセッションとして光らせる
+	LongArrayList chests = new LongArrayList();
+	int[] countsByType = new int[ContainerTypes.NAMES.size()];
+	SearchEvents.ChestScan scan = new SearchEvents.ChestScan();
+	scan.begin();
+	ChestIndex.of(world).forEachWithin(center, radius, filter.mask(), filter.positionFilter(world), countsByType, chests::add, scan);
+	SearchEvents.commitChestScan(scan, source.getName(), "index", radius);
+	int count = GlowSessions.start(SearchJobs.ownerOf(source), world, chests, glowSeconds * 20);
+	if (VIRTUAL_GLOW_MARKERS) {
+		VirtualGlowMarkers.refresh(world);
+	}
+	SearchMetrics.recordServerCommand(SearchMetrics.Command.GLOW, startNanos);
 	if (count <= 0) {
-		source.sendFeedback(() -> message("glow_none"), false);
+		source.sendFeedback(() -> message(filter.isDefault() ? "glow_none" : "container_none_nearby"), false);
 		return 0;
 	}
-	glowWorldKey = world.getRegistryKey();
-	glowExpireTick = world.getTime() + glowSeconds * 20L;
 	final int finalGlowSeconds = glowSeconds;
 	MutableText durationText = formatDurationText(finalGlowSeconds);
-	source.sendFeedback(() -> message("glow_started", count, durationText).formatted(Formatting.YELLOW), false);
+	if (filter.isDefault()) {
+		source.sendFeedback(() -> message("glow_started", count, durationText).formatted(Formatting.YELLOW), false);
+	} else {
+		MutableText breakdown = formatContainerBreakdown(filter, countsByType);
+		source.sendFeedback(() -> message("glow_started_containers", count, durationText, breakdown).formatted(Formatting.YELLOW), false);
+	}
 	return count;
 }
 
+// 種類の指定に知らない名前が含まれていれば、使える名前を添えてエラーを返す
+private static boolean validateContainerTypes(ServerCommandSource source, ContainerTypes.Filter filter) {
+	if (filter != null) {
+		return true;
+	}
+	List<String> names = new ArrayList<>(ContainerTypes.NAMES);
+	names.add(ContainerTypes.ALL_KEYWORD);
+	names.add(ContainerTypes.LOOT_KEYWORD);
+	source.sendError(message("container_type_unknown", String.join(", ", names)));
+	return false;
+}
+
+// 指定された種類ごとの件数を「チェスト: 3、樽: 2」の形にまとめる（0件の種類も表示する）
+private static MutableText formatContainerBreakdown(ContainerTypes.Filter filter, int[] countsByType) {
+	MutableText breakdown = Text.empty();
+	boolean first = true;
+	for (int type = 0; type < countsByType.length; type++) {
+		if ((filter.mask() & (1 << type)) == 0) {
+			continue;
+		}
+		if (!first) {
+			breakdown.append(message("container_type_separator"));
+		}
+		first = false;
+		MutableText name = message("container_type." + ContainerTypes.NAMES.get(type)).formatted(Formatting.AQUA);
+		breakdown.append(message("container_type_count", name, countsByType[type]));
+	}
+	return breakdown;
+}
+
 private static int validateRadius(ServerCommandSource source, int radius) {
 	if (radius > MAX_CHEST_RADIUS) {
 		source.sendError(message("radius_too_large").formatted(Formatting.RED));
@@ -372,140 +803,155 @@ private static MutableText formatDurationText(int seconds) {
 	return message("duration.seconds", seconds);
 }
 
-private static List<BlockPos> findNearbyChests(ServerWorld world, BlockPos center, int radius) {
-	int chunkRadius = Math.max(1, (radius / 16) + 1);
-	int centerChunkX = center.getX() >> 4;
-	int centerChunkZ = center.getZ() >> 4;
-	ServerChunkManager chunkManager = world.getChunkManager();
-
-	List<BlockPos> targets = new ArrayList<>();
-	for (int chunkX = centerChunkX - chunkRadius; chunkX <= centerChunkX + chunkRadius; chunkX++) {
-		for (int chunkZ = centerChunkZ - chunkRadius; chunkZ <= centerChunkZ + chunkRadius; chunkZ++) {
-			WorldChunk chunk = chunkManager.getWorldChunk(chunkX, chunkZ);
-			if (chunk == null) {
-				continue;
-			}
-			for (BlockEntity blockEntity : chunk.getBlockEntities().values()) {
-				if (blockEntity instanceof ChestBlockEntity && blockEntity.getPos().isWithinDistance(center, radius)) {
-					targets.add(blockEntity.getPos());
-				}
-			}
-		}
+// 1か所分のマーカーを表示する（同じ位置の参照数はGlowSessionsが管理する）
+static void showGlowMarker(ServerWorld world, long packed) {
+	if (VIRTUAL_GLOW_MARKERS) {
+		// サーバー側のエンティティは作らず、範囲内のプレイヤーへパケットで見せる
+		VirtualGlowMarkers.add(world, packed);
+		return;
+	}
+	BlockPos pos = BlockPos.fromLong(packed);
+	ArmorStandEntity marker = new ArmorStandEntity(world, pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5);
+	marker.setInvisible(true);
+	marker.setNoGravity(true);
+	marker.setInvulnerable(true);
+	marker.setGlowing(true);
+	marker.setSilent(true);
+	marker.setCustomNameVisible(false);
+	marker.addCommandTag(GLOW_MARKER_TAG);
+	// 読み込みイベントで残骸と判定されないよう、生成より先に登録する
+	registerMarker(world, marker);
+	if (!world.spawnEntity(marker)) {
+		ACTIVE_GLOW_MARKERS.get(world.getRegistryKey()).remove(packed);
 	}
-	return targets;
 }
 
-private static int createGlowMarkers(ServerWorld world, BlockPos center, int radius) {
-	List<BlockPos> targets = findNearbyChests(world, center, radius);
-	if (targets.isEmpty()) {
-		return 0;
+static void hideGlowMarker(ServerWorld world, long packed) {
+	if (VirtualGlowMarkers.remove(world, packed)) {
+		return;
+	}
+	Long2ObjectOpenHashMap<ArmorStandEntity> markers = ACTIVE_GLOW_MARKERS.get(world.getRegistryKey());
+	if (markers != null) {
+		discardMarkerEntity(markers.remove(packed));
 	}
-	for (BlockPos pos : targets) {
-			ArmorStandEntity marker = new ArmorStandEntity(world, pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5);
-			marker.setInvisible(true);
-			marker.setNoGravity(true);
-			marker.setInvulnerable(true);
-			marker.setGlowing(true);
-			marker.setSilent(true);
-			marker.setCustomNameVisible(false);
-			marker.addCommandTag(GLOW_MARKER_TAG);
-			if (world.spawnEntity(marker)) {
-				registerMarker(world, marker);
-			}
-	}
-	needsMarkerRefresh = false;
-	return targets.size();
 }
 
+	// すべてのセッションとマーカーを破棄する（サーバーの起動・停止時）
 	private static void clearGlowMarkers(MinecraftServer server) {
-		clearGlowMarkersInternal(server);
-	}
-
-	private static void clearGlowMarkersInternal(MinecraftServer server) {
-		boolean hadMarkers = !ACTIVE_MARKERS.isEmpty();
-		RegistryKey<World> targetWorld = glowWorldKey;
-		for (ArmorStandEntity entity : ACTIVE_MARKERS) {
-			if (entity != null && entity.isAlive()) {
-				entity.discard();
+		GlowSessions.clearAll();
+		VirtualGlowMarkers.clearAll(server);
+		for (Long2ObjectOpenHashMap<ArmorStandEntity> markers : ACTIVE_GLOW_MARKERS.values()) {
+			for (ArmorStandEntity entity : markers.values()) {
+				discardMarkerEntity(entity);
 			}
 		}
-		ACTIVE_MARKERS.clear();
 		ACTIVE_GLOW_MARKERS.clear();
-		glowExpireTick = -1;
-		glowWorldKey = null;
-		if (hadMarkers && targetWorld != null && server != null) {
-			ServerWorld world = server.getWorld(targetWorld);
-			if (world != null) {
-				Text notice = message("glow_cleared").formatted(Formatting.YELLOW);
-				for (ServerPlayerEntity player : world.getPlayers()) {
-					player.sendMessage(notice, false);
-				}
-			}
-		}
 	}
 
 	private static Text getStructureDisplayName(String id) {
 		return switch (id) {
 			case "fortress" -> message("structure_name.fortress");
 			case "bastion_remnant" -> message("structure_name.bastion_remnant");
-			default -> Text.literal(id.replace('_', ' '));
+			default -> Text.literal(Identifier.of(id).getPath().replace('_', ' '));
 		};
 	}
 
-	private static boolean isStructureKnown(String id, ChunkPos chunkPos) {
-		Set<Long> set = FOUND_STRUCTURE_CHUNKS.get(id);
-		return set != null && set.contains(chunkPos.toLong());
+	// 検索対象の指定（構造物ID・#タグ・all）の表示名
+	private static Text getSearchDisplayName(String spec) {
+		if (StructureTargets.ALL.equals(spec)) {
+			return message("structure_name.all");
+		}
+		if (spec.startsWith("#")) {
+			return Text.literal(spec);
+		}
+		Identifier id = Identifier.tryParse(spec);
+		return getStructureDisplayName(id != null && Identifier.DEFAULT_NAMESPACE.equals(id.getNamespace()) ? id.getPath() : spec);
 	}
 
-	private static void markStructureKnown(String id, ChunkPos chunkPos) {
-		FOUND_STRUCTURE_CHUNKS.computeIfAbsent(id, key -> new HashSet<>()).add(chunkPos.toLong());
+	// 表示済みの構造物はワールドごとの記録ファイルで管理し、再起動後も引き継ぐ
+	private static boolean isStructureKnown(ServerWorld world, String id, ChunkPos chunkPos) {
+		return DiscoveredStructureStore.isKnown(world, Identifier.of(id), chunkPos.toLong());
 	}
 
-// 生成された構造物の中心と種別を解決
-private static StructureLocation resolveStructureCenter(ServerWorld world, ChunkPos chunkPos, RegistryEntryList<Structure> targetList, String structureId) {
-	LongSet forcedChunks = world.getForcedChunks();
-	long chunkLong = ChunkPos.toLong(chunkPos.x, chunkPos.z);
-	boolean alreadyForced = forcedChunks.contains(chunkLong);
-	if (!alreadyForced) {
-			world.setChunkForced(chunkPos.x, chunkPos.z, true);
-		}
-		try {
-			world.getChunkManager().getChunk(chunkPos.x, chunkPos.z, ChunkStatus.FULL, true);
-			int probeX = chunkPos.getStartX() + 8;
-			int probeZ = chunkPos.getStartZ() + 8;
-			int probeY = world.getBottomY() + 64;
-			BlockPos probe = new BlockPos(probeX, probeY, probeZ);
-			StructureStart start = world.getStructureAccessor().getStructureContaining(probe, targetList);
-			if (start == null) {
-				return null;
-			}
-
-			StructureLocation specialLocation = null;
-			if ("fortress".equals(structureId)) {
-				BlockPos special = findBridgeCrossing(start.getChildren());
-				if (special != null) {
-					specialLocation = new StructureLocation(special, null);
-				}
-			} else if ("bastion_remnant".equals(structureId)) {
-				specialLocation = findBastionDetails(start.getChildren());
-			}
-			if (specialLocation != null) {
-				return specialLocation;
-			}
+	private static void markStructureKnown(ServerWorld world, String id, ChunkPos chunkPos) {
+		DiscoveredStructureStore.markKnown(world, Identifier.of(id), chunkPos.toLong());
+		StructureIndex.markVisited(world, id, chunkPos.toLong());
+	}
 
-			BlockBox box = extractBoundingBox(start);
-			if (box == null) {
-				return null;
+	// リージョンファイルに保存済みの開始情報から中心と種別を解決（ワーカースレッドから呼び出し可）
+	static StructureLocation readStoredStructure(ServerWorld world, ChunkPos chunkPos, RegistryEntryList<Structure> targetList, String structureId) {
+		for (RegistryEntry<Structure> entry : targetList) {
+			StructureStart start = StructureStartReader.read(world, chunkPos, entry);
+			if (start != null) {
+				return describeStructureStart(start, structureId);
 			}
-			return new StructureLocation(getPieceCenter(box), null);
-		} finally {
-			if (!alreadyForced) {
-				world.setChunkForced(chunkPos.x, chunkPos.z, false);
+		}
+		return null;
+	}
+
+	// 読み込み済みのチャンクの開始情報から中心と種別を解決する。読み込まれていなければnull（サーバースレッドから呼び出す）
+	static StructureLocation resolveFromLoadedChunk(ServerWorld world, ChunkPos chunkPos, RegistryEntryList<Structure> targetList, String structureId) {
+		Chunk loaded = world.getChunkManager().getChunk(chunkPos.x, chunkPos.z, ChunkStatus.STRUCTURE_STARTS, false);
+		if (loaded == null) {
+			return null;
+		}
+		StructureLocation location = describeChunkStructure(loaded, targetList, structureId);
+		if (location != null) {
+			SearchMetrics.LOADED_RESOLVES.increment();
+		}
+		return location;
+	}
+
+	// 生成された構造物の中心と種別を解決（ワーカースレッドから呼び出す）
+	// 読み込まれていないチャンクは開始情報が決まる段階（STRUCTURE_STARTS）まで一時チケットで非同期に取得し、
+	// 取得後の解決はサーバースレッドへのコールバックで行う。待っている間もサーバーのtickは進む
+	// 経路とチャンク生成の有無をJFRイベントへ書き込む
+	private static StructureLocation resolveStructureCenter(SearchJobs.SearchJob job, ServerWorld world, ChunkPos chunkPos,
+			RegistryEntryList<Structure> targetList, String structureId, SearchEvents.Resolve event) {
+		// 既に読み込まれているチャンクなら取得要求を出さずに開始情報を参照する
+		StructureLocation loaded = job.callOnServer(() -> resolveFromLoadedChunk(world, chunkPos, targetList, structureId));
+		if (loaded != null) {
+			event.path = "loaded";
+			return loaded;
+		}
+
+		SearchMetrics.ACQUIRED_CHUNKS.increment();
+		event.path = "ticket";
+		// リージョンファイルに無いチャンクは、ここで新たに生成されることになる
+		if (!RegionChunkReader.isSaved(StructureStartReader.regionDirectory(world), chunkPos.x, chunkPos.z)) {
+			SearchMetrics.GENERATED_CHUNKS.increment();
+			event.generated = true;
+		}
+		return job.await(ChunkAcquisition.acquire(world, chunkPos, ChunkStatus.STRUCTURE_STARTS)
+				.thenApplyAsync(chunk -> chunk != null ? describeChunkStructure(chunk, targetList, structureId) : null, world.getServer()));
+	}
+
+	// チャンクが持つ開始情報のうち、対象の構造物のものから中心と種別を求める
+	private static StructureLocation describeChunkStructure(Chunk chunk, RegistryEntryList<Structure> targetList, String structureId) {
+		for (RegistryEntry<Structure> entry : targetList) {
+			StructureStart start = chunk.getStructureStart(entry.value());
+			if (start != null && start.hasChildren()) {
+				return describeStructureStart(start, structureId);
 			}
 		}
+		return null;
+	}
+
+	// 開始情報のピース一覧から代表座標と種別を求める
+	private static StructureLocation describeStructureStart(StructureStart start, String structureId) {
+		StructureLocation specialLocation = StructureResolvers.resolve(structureId, start.getChildren());
+		if (specialLocation != null) {
+			return specialLocation;
+		}
+
+		BlockBox box = extractBoundingBox(start);
+		if (box == null) {
+			return null;
+		}
+		return new StructureLocation(getPieceCenter(box), null);
 	}
 
-	private static BlockPos findBridgeCrossing(List<StructurePiece> pieces) {
+	static BlockPos findBridgeCrossing(List<StructurePiece> pieces) {
 		BlockPos fallback = null;
 		for (StructurePiece piece : pieces) {
 			BlockBox pieceBox = piece.getBoundingBox();
@@ -527,7 +973,7 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 	}
 
 	// ピグリン要塞の種別と位置を解決
-	private static StructureLocation findBastionDetails(List<StructurePiece> pieces) {
+	static StructureLocation findBastionDetails(List<StructurePiece> pieces) {
 		BlockPos fallbackPos = null;
 		String fallbackType = null;
 		for (StructurePiece piece : pieces) {
@@ -538,12 +984,12 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 			if (id == null) {
 				continue;
 			}
-			String idString = id.toString();
 			BlockBox box = piece.getBoundingBox();
 			if (box == null) {
 				continue;
 			}
-			String detectedType = detectBastionType(idString);
+			// 起動時に作成した表を引くだけで、文字列の生成や部分一致は行わない
+			String detectedType = BastionTypeTable.typeOf(id);
 			if (detectedType == null) {
 				continue;
 			}
@@ -562,8 +1008,8 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 		return null;
 	}
 
-	// ピースID文字列からピグリン要塞の種別キーを抽出
-	private static String detectBastionType(String idString) {
+	// ピースID文字列からピグリン要塞の種別キーを抽出（種別表の差し替えられた枝の入口と、表に無いIDの判定に使う）
+	static String detectBastionType(String idString) {
 		String lowered = idString.toLowerCase(Locale.ROOT);
 		if (lowered.contains("treasure")) {
 			return BASTION_TYPE_TREASURE_KEY;
@@ -582,11 +1028,11 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 
 	private static Identifier getPoolPieceId(StructurePoolElement element) {
 		if (element instanceof SinglePoolElement single) {
-			// 取得方法がバージョンで異なるため共通ヘルパーに委譲
-			return resolvePoolElementId(single);
+			// 取得方法がバージョンで異なるため起動時に解決したアダプタに委譲
+			return VersionAdapter.poolElementId(single);
 		}
 		if (element instanceof LegacySinglePoolElement legacy) {
-			return resolvePoolElementId(legacy);
+			return VersionAdapter.poolElementId(legacy);
 		}
 		return null;
 	}
@@ -598,7 +1044,7 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 	}
 
 	// 構造物レジストリを直接要求し、開発版と本番版の両方で安定して呼び出す
-	private static RegistryEntryLookup<Structure> resolveStructureLookup(RegistryWrapper.WrapperLookup lookup) {
+	static RegistryWrapper.Impl<Structure> resolveStructureLookup(RegistryWrapper.WrapperLookup lookup) {
 		try {
 			// Fabric環境ではgetOrThrowがマッピング済みであり、反射よりも安全に取得できる
 			return lookup.getOrThrow(RegistryKeys.STRUCTURE);
@@ -610,245 +1056,78 @@ private static StructureLocation resolveStructureCenter(ServerWorld world, Chunk
 	// テレポート座標のスタイルへクリック・ホバー挙動を設定
 	private static Style applyTeleportInteractions(Style style, String teleportCommand, MutableText hoverHint) {
 		Style updated = style;
-		ClickEvent clickEvent = createClipboardClickEvent(teleportCommand);
+		ClickEvent clickEvent = VersionAdapter.clipboardClick(teleportCommand);
 		if (clickEvent != null) {
 			updated = updated.withClickEvent(clickEvent);
 		}
-		HoverEvent hoverEvent = createShowTextHoverEvent(hoverHint);
+		HoverEvent hoverEvent = VersionAdapter.showTextHover(hoverHint);
 		if (hoverEvent != null) {
 			updated = updated.withHoverEvent(hoverEvent);
 		}
 		return updated;
 	}
 
-	// クリックイベントをバージョン差異を吸収して生成
-	private static ClickEvent createClipboardClickEvent(String teleportCommand) {
-		try {
-			Class<?> modernClass = Class.forName("net.minecraft.text.ClickEvent$CopyToClipboard");
-			Constructor<?> constructor = modernClass.getDeclaredConstructor(String.class);
-			constructor.setAccessible(true);
-			return (ClickEvent) constructor.newInstance(teleportCommand);
-		} catch (Exception modernError) {
-			try {
-				Class<?> legacyClass = Class.forName("net.minecraft.text.ClickEvent");
-				Constructor<?> legacyConstructor = legacyClass.getDeclaredConstructor(ClickEvent.Action.class, String.class);
-				legacyConstructor.setAccessible(true);
-				return (ClickEvent) legacyConstructor.newInstance(ClickEvent.Action.COPY_TO_CLIPBOARD, teleportCommand);
-			} catch (Exception legacyError) {
-				LOGGER.warn("ClickEvent生成に失敗: {}", legacyError.toString());
-				return null;
-			}
-		}
-	}
-
-	// ホバーイベントを各バージョンで共通に扱えるよう生成
-	private static HoverEvent createShowTextHoverEvent(MutableText hoverHint) {
-		try {
-			Class<?> modernClass = Class.forName("net.minecraft.text.HoverEvent$ShowText");
-			Constructor<?> constructor = modernClass.getDeclaredConstructor(Text.class);
-			constructor.setAccessible(true);
-			return (HoverEvent) constructor.newInstance(hoverHint);
-		} catch (Exception modernError) {
-			try {
-				Class<?> legacyClass = Class.forName("net.minecraft.text.HoverEvent");
-				Constructor<?> legacyConstructor = legacyClass.getDeclaredConstructor(HoverEvent.Action.class, Object.class);
-				legacyConstructor.setAccessible(true);
-				return (HoverEvent) legacyConstructor.newInstance(HoverEvent.Action.SHOW_TEXT, hoverHint);
-			} catch (Exception legacyError) {
-				LOGGER.warn("HoverEvent生成に失敗: {}", legacyError.toString());
-				return null;
-			}
-		}
-	}
-
-	// プール要素のIDをリフレクション経由で取得する
-	private static Identifier resolvePoolElementId(Object element) {
-		// 1.21.5以前ではpublicでないため強制的に呼び出しを行う
-		Identifier modernId = invokePoolElementIdentifier(element, "getIdOrThrow");
-		if (modernId != null) {
-			return modernId;
-		}
-		// 古いバージョンでのみ存在するOptional戻り値のgetIdも試す
-		Identifier legacyId = invokePoolElementIdentifier(element, "getId");
-		if (legacyId != null) {
-			return legacyId;
-		}
-		// それでも取得できない場合はフィールドを走査してIdentifierを直接抽出する
-		Identifier fieldId = extractIdentifierFromPoolElement(element);
-		if (fieldId != null) {
-			return fieldId;
-		}
-		LOGGER.warn("プール要素のID取得に失敗: 対応するメソッドやフィールドが確認できませんでした");
-		return null;
-	}
-
-	// 任意アクセス修飾子のメソッドを直接叩いてIdentifierを抜き出す
-	private static Identifier invokePoolElementIdentifier(Object element, String methodName) {
-		if (element == null) {
-			return null;
-		}
-		try {
-			Method method = element.getClass().getDeclaredMethod(methodName);
-			method.setAccessible(true);
-			Object result = method.invoke(element);
-			if (result instanceof Identifier identifier) {
-				return identifier;
-			}
-			if (result instanceof Optional<?> optional) {
-				Object value = optional.orElse(null);
-				if (value instanceof Identifier identifier) {
-					return identifier;
-				}
-			}
-		} catch (ReflectiveOperationException | SecurityException e) {
-			LOGGER.debug("プール要素IDの取得で{}を呼び出す際に失敗: {}", methodName, e.toString());
-		}
-		return null;
-	}
-
-	// クラス階層を辿ってIdentifierが含まれるフィールドを探索し直接取り出す
-	private static Identifier extractIdentifierFromPoolElement(Object element) {
-		if (element == null) {
-			return null;
-		}
-		Class<?> current = element.getClass();
-		while (current != null && current != Object.class) {
-			for (Field field : current.getDeclaredFields()) {
-				Identifier identifier = readIdentifierFromField(element, field);
-				if (identifier != null) {
-					return identifier;
-				}
-			}
-			current = current.getSuperclass();
-		}
-		return null;
-	}
-
-	// フィールドの型がEitherやIdentifierを保持している場合にIDを抽出する
-	private static Identifier readIdentifierFromField(Object element, Field field) {
-		try {
-			field.setAccessible(true);
-			Object value = field.get(element);
-			if (value instanceof Identifier identifier) {
-				return identifier;
-			}
-			if (value instanceof Either<?, ?> either) {
-				Object left = either.left().orElse(null);
-				if (left instanceof Identifier identifier) {
-					return identifier;
-				}
-			}
-		} catch (IllegalAccessException | SecurityException ignored) {
-			LOGGER.debug("プール要素ID抽出中にフィールド{}へアクセスできませんでした", field.getName());
-		}
-		return null;
-	}
 	private static void discardMarkerEntity(ArmorStandEntity marker) {
 		if (marker != null && marker.isAlive()) {
 			marker.discard();
 		}
 	}
 
-	private static void handleChestBreak(ServerWorld world, BlockPos pos) {
-		GlowKey key = new GlowKey(world.getRegistryKey(), pos.toImmutable());
-		ArmorStandEntity marker = ACTIVE_GLOW_MARKERS.remove(key);
-		if (marker != null) {
-			discardMarkerEntity(marker);
-			ACTIVE_MARKERS.remove(marker);
-			return;
-		}
-		Iterator<Map.Entry<GlowKey, ArmorStandEntity>> iterator = ACTIVE_GLOW_MARKERS.entrySet().iterator();
-		while (iterator.hasNext()) {
-			Map.Entry<GlowKey, ArmorStandEntity> entry = iterator.next();
-			GlowKey otherKey = entry.getKey();
-			if (otherKey.worldKey.equals(key.worldKey) && otherKey.pos().equals(key.pos())) {
-				discardMarkerEntity(entry.getValue());
-				ACTIVE_MARKERS.remove(entry.getValue());
-				iterator.remove();
-				break;
-			}
-		}
+	// ブロックエンティティが消えた位置のマーカーを外す（WorldChunkMixinから呼ばれる）
+	// 爆発・ピストン・コマンドなど原因を問わず通知されるため、毎tickの存在確認は不要
+	public static void onBlockEntityRemoved(ServerWorld world, BlockPos pos) {
+		GlowSessions.onChestRemoved(world, pos.asLong());
 	}
 
 private static void resetGlowState(MinecraftServer server) {
 		clearGlowMarkers(server);
-	needsMarkerRefresh = true;
 }
 
 	private static void registerMarker(ServerWorld world, ArmorStandEntity marker) {
-		GlowKey key = new GlowKey(world.getRegistryKey(), marker.getBlockPos().toImmutable());
-		if (!ACTIVE_GLOW_MARKERS.containsKey(key)) {
-			ACTIVE_GLOW_MARKERS.put(key, marker);
-		}
-		if (!ACTIVE_MARKERS.contains(marker)) {
-			ACTIVE_MARKERS.add(marker);
-		}
+		ACTIVE_GLOW_MARKERS.computeIfAbsent(world.getRegistryKey(), key -> new Long2ObjectOpenHashMap<>())
+				.putIfAbsent(marker.getBlockPos().asLong(), marker);
 	}
 
-	private static void refreshTrackedMarkers(ServerWorld world) {
-		WorldBorder border = world.getWorldBorder();
-		double minX = border.getBoundWest();
-		double maxX = border.getBoundEast();
-		double minZ = border.getBoundNorth();
-		double maxZ = border.getBoundSouth();
-		double minY = world.getBottomY();
-		double maxY = minY + 512;
-
-		Box box = new Box(minX, minY, minZ, maxX, maxY, maxZ);
-		List<ArmorStandEntity> markers = world.getEntitiesByClass(ArmorStandEntity.class, box,
-				entity -> entity.getCommandTags().contains(GLOW_MARKER_TAG));
-		for (ArmorStandEntity marker : markers) {
-			registerMarker(world, marker);
-		}
-		needsMarkerRefresh = false;
-	}
-
-	private static void handleGlowCleanup(ServerWorld world) {
-		if (needsMarkerRefresh && world.getRegistryKey() == World.NETHER) {
-			refreshTrackedMarkers(world);
-		}
-		if (glowWorldKey != null && glowWorldKey.equals(world.getRegistryKey())
-				&& glowExpireTick > 0 && world.getTime() >= glowExpireTick) {
-			clearGlowMarkers(world.getServer());
+	// チャンクと一緒に読み込まれたマーカーを確認する
+	// 現在のセッションのものなら新しいインスタンスに差し替え、前回から残ったものはその場で消す
+	private static void handleEntityLoad(Entity entity, ServerWorld world) {
+		if (!(entity instanceof ArmorStandEntity marker) || !marker.getCommandTags().contains(GLOW_MARKER_TAG)) {
 			return;
 		}
-		if (glowWorldKey != null && glowWorldKey.equals(world.getRegistryKey())
-				&& world.getPlayers().isEmpty()) {
-			clearGlowMarkers(world.getServer());
+		long packed = marker.getBlockPos().asLong();
+		Long2ObjectOpenHashMap<ArmorStandEntity> markers = ACTIVE_GLOW_MARKERS.get(world.getRegistryKey());
+		if (markers != null && markers.containsKey(packed)) {
+			markers.put(packed, marker);
 			return;
 		}
-		Iterator<Map.Entry<GlowKey, ArmorStandEntity>> iterator = ACTIVE_GLOW_MARKERS.entrySet().iterator();
-		while (iterator.hasNext()) {
-			Map.Entry<GlowKey, ArmorStandEntity> entry = iterator.next();
-			GlowKey key = entry.getKey();
-			if (!key.worldKey.equals(world.getRegistryKey())) {
-				continue;
-			}
-			BlockEntity blockEntity = world.getBlockEntity(key.pos());
-			if (!(blockEntity instanceof ChestBlockEntity)) {
-				ArmorStandEntity marker = entry.getValue();
-				discardMarkerEntity(marker);
-				ACTIVE_MARKERS.remove(marker);
-				iterator.remove();
-			}
-		}
+		marker.discard();
 	}
 
-	private static int executeChestCount(ServerCommandSource source, int requestedRadius) {
+	private static int executeChestCount(ServerCommandSource source, int requestedRadius, ContainerTypes.Filter filter) {
 		try {
 			int radius = validateRadius(source, requestedRadius);
-			if (radius < 0) {
+			if (radius < 0 || !validateContainerTypes(source, filter) || !checkRateLimit(source, RateLimits.CHEST_COST)) {
 				return 0;
 			}
+			long startNanos = System.nanoTime();
 			ServerWorld world = source.getWorld();
 			BlockPos center = BlockPos.ofFloored(source.getPosition());
-			List<BlockPos> targets = findNearbyChests(world, center, radius);
-			int count = targets.size();
+			// 指定されたすべての種類を1回の走査で種類ごとに数える
+			int[] countsByType = new int[ContainerTypes.NAMES.size()];
+			SearchEvents.ChestScan scan = new SearchEvents.ChestScan();
+			scan.begin();
+			int count = ChestIndex.of(world).forEachWithin(center, radius, filter.mask(), filter.positionFilter(world), countsByType, null, scan);
+			SearchEvents.commitChestScan(scan, source.getName(), "index", radius);
+			SearchMetrics.recordServerCommand(SearchMetrics.Command.CHEST, startNanos);
 			if (count == 0) {
-				source.sendFeedback(() -> message("chest_none_nearby"), false);
-			} else {
+				source.sendFeedback(() -> message(filter.isDefault() ? "chest_none_nearby" : "container_none_nearby"), false);
+			} else if (filter.isDefault()) {
 				final int total = count;
 				source.sendFeedback(() -> message("chest_count", total), false);
+			} else {
+				final int total = count;
+				MutableText breakdown = formatContainerBreakdown(filter, countsByType);
+				source.sendFeedback(() -> message(filter.lootOnly() ? "container_count_loot" : "container_count", total, breakdown), false);
 			}
 			return count;
 		} catch (Exception e) {
@@ -858,13 +1137,184 @@ private static void resetGlowState(MinecraftServer server) {
 		}
 	}
 
+	// 読み込み済みチャンクは索引から、それ以外はリージョンファイルからバックグラウンドで数える
+	private static int executeChestAudit(ServerCommandSource source, int radius) {
+		try {
+			if (!checkRateLimit(source, RateLimits.CHEST_AUDIT_COST)) {
+				return 0;
+			}
+			long startNanos = System.nanoTime();
+			ServerWorld world = source.getWorld();
+			BlockPos center = BlockPos.ofFloored(source.getPosition());
+			SearchEvents.ChestScan indexScan = new SearchEvents.ChestScan();
+			indexScan.begin();
+			int loadedCount = ChestIndex.of(world).count(center, radius, indexScan);
+			SearchEvents.commitChestScan(indexScan, source.getName(), "index", radius);
+			LongSet loadedChunks = new LongOpenHashSet();
+			for (int chunkX = (center.getX() - radius) >> 4; chunkX <= (center.getX() + radius) >> 4; chunkX++) {
+				for (int chunkZ = (center.getZ() - radius) >> 4; chunkZ <= (center.getZ() + radius) >> 4; chunkZ++) {
+					if (world.getChunkManager().isChunkLoaded(chunkX, chunkZ)) {
+						loadedChunks.add(ChunkPos.toLong(chunkX, chunkZ));
+					}
+				}
+			}
+			Path regionDir = StructureStartReader.regionDirectory(world);
+			long dispatchNanos = System.nanoTime() - startNanos;
+			SearchJobs.StartResult started = SearchJobs.submit(source, job -> {
+				SearchEvents.ChestScan regionScan = new SearchEvents.ChestScan();
+				regionScan.begin();
+				int storedCount = RegionChestScanner.countUnloaded(regionDir, center, radius, loadedChunks, regionScan, job::checkCancelled);
+				SearchEvents.commitChestScan(regionScan, source.getName(), "region", radius);
+				SearchMetrics.recordCommand(SearchMetrics.Command.CHEST_AUDIT, startNanos);
+				SearchMetrics.recordServerThread(SearchMetrics.Command.CHEST_AUDIT, dispatchNanos);
+				job.checkCancelled();
+				job.sendFeedback(message("chest_audit_result", radius, loadedCount + storedCount, loadedCount, storedCount));
+			});
+			if (!admitted(source, started, RateLimits.CHEST_AUDIT_COST)) {
+				return 0;
+			}
+			source.sendFeedback(() -> message("chest_audit_started", radius).formatted(Formatting.GRAY), false);
+			return 1;
+		} catch (Exception e) {
+			LOGGER.error("チェスト数の調査中にエラー", e);
+			source.sendError(message("chest_error", e.getClass().getSimpleName()));
+			return 0;
+		}
+	}
+
+	// 読み込み済みチャンクから指定したブロックを数え、glowSecondsが正なら最寄りのものを光らせる
+	// パレットで対象を含みうるセクションだけをサーバースレッドで複製し、展開と照合はワーカーで並列に行う
+	// 複製は受け付けられた後にワーカーからサーバースレッドへ戻して行い、混雑で断られた要求では行わない
+	private static int executeOreScan(ServerCommandSource source, Identifier blockId, int radius, int glowSeconds) {
+		try {
+			Block block = source.getRegistryManager().getOrThrow(RegistryKeys.BLOCK)
+					.getOptional(RegistryKey.of(RegistryKeys.BLOCK, blockId))
+					.map(RegistryEntry::value)
+					.orElse(null);
+			if (block == null || block.getDefaultState().isAir()) {
+				source.sendError(message("ore_unknown_block", blockId.toString()));
+				return 0;
+			}
+			if (!checkRateLimit(source, RateLimits.ORE_COST)) {
+				return 0;
+			}
+			long startNanos = System.nanoTime();
+			ServerWorld world = source.getWorld();
+			BlockPos center = BlockPos.ofFloored(source.getPosition());
+			Text blockName = block.getName();
+			long dispatchNanos = System.nanoTime() - startNanos;
+			SearchJobs.StartResult started = SearchJobs.submit(source, job -> {
+				try {
+					// イベントはワーカーで開始し、サーバースレッドでの複製にかかった時間は別の項目に残す
+					SearchEvents.OreScan scan = new SearchEvents.OreScan();
+					scan.begin();
+					PaletteBlockScanner.Snapshot snapshot = job.callOnServer(() -> {
+						long snapshotStartNanos = System.nanoTime();
+						PaletteBlockScanner.Snapshot copied = PaletteBlockScanner.snapshot(world, center, radius, block, scan);
+						scan.snapshotDuration = System.nanoTime() - snapshotStartNanos;
+						return copied;
+					});
+					LongArrayList matches = PaletteBlockScanner.scan(snapshot);
+					job.checkCancelled();
+					scan.end();
+					if (scan.shouldCommit()) {
+						scan.player = source.getName();
+						scan.block = blockId.toString();
+						scan.radius = radius;
+						scan.matches = matches.size();
+						scan.commit();
+					}
+					int count = matches.size();
+					if (count == 0) {
+						job.sendFeedback(message("ore_none", blockName, radius));
+						return;
+					}
+					if (glowSeconds <= 0) {
+						job.sendFeedback(message("ore_count", blockName, radius, count));
+						return;
+					}
+					LongArrayList nearest = nearestPositions(matches, center, MAX_ORE_GLOW);
+					// 鉱石の発光は容器の発光とは別のセッションなので、/ns glowing_chestの発光は残る
+					int glowing = job.callOnServer(() -> {
+						int shown = GlowSessions.startOre(SearchJobs.ownerOf(source), world, nearest, block, glowSeconds * 20);
+						if (VIRTUAL_GLOW_MARKERS) {
+							VirtualGlowMarkers.refresh(world);
+						}
+						return shown;
+					});
+					job.sendFeedback(message("ore_glow_started", blockName, radius, count, glowing, formatDurationText(glowSeconds))
+							.formatted(Formatting.YELLOW));
+				} finally {
+					SearchMetrics.recordCommand(SearchMetrics.Command.ORE, startNanos);
+					SearchMetrics.recordServerThread(SearchMetrics.Command.ORE, dispatchNanos + job.serverNanos());
+				}
+			});
+			if (!admitted(source, started, RateLimits.ORE_COST)) {
+				return 0;
+			}
+			source.sendFeedback(() -> message("ore_started", blockName, radius).formatted(Formatting.GRAY), false);
+			return 1;
+		} catch (Exception e) {
+			LOGGER.error("鉱石の検索中にエラー", e);
+			source.sendError(message("structure_search_error", e.getClass().getSimpleName()));
+			return 0;
+		}
+	}
+
+	// 中心に近い順に最大limit件を取り出す
+	private static LongArrayList nearestPositions(LongArrayList positions, BlockPos center, int limit) {
+		if (positions.size() <= limit) {
+			return positions;
+		}
+		long[] sorted = positions.toLongArray();
+		LongArrays.quickSort(sorted, (a, b) -> Long.compare(squaredDistance(a, center), squaredDistance(b, center)));
+		return LongArrayList.wrap(sorted, limit);
+	}
+
+	private static long squaredDistance(long packed, BlockPos center) {
+		long dx = BlockPos.unpackLongX(packed) - center.getX();
+		long dy = BlockPos.unpackLongY(packed) - center.getY();
+		long dz = BlockPos.unpackLongZ(packed) - center.getZ();
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// 計測値をコマンドごと・処理ごとに表示する
+	private static int executeStats(ServerCommandSource source) {
+		source.sendFeedback(() -> message("stats_title").formatted(Formatting.LIGHT_PURPLE), false);
+		for (SearchMetrics.Command command : SearchMetrics.Command.values()) {
+			SearchMetrics.LatencyHistogram latency = SearchMetrics.latency(command);
+			SearchMetrics.LatencyHistogram serverThread = SearchMetrics.serverThread(command);
+			source.sendFeedback(() -> message("stats_latency", command.label(), latency.count(),
+					formatMillis(latency.averageMillis()), formatMillis(latency.percentileMillis(0.5)),
+					formatMillis(latency.percentileMillis(0.99)), formatMillis(latency.maxMillis()),
+					formatMillis(serverThread.averageMillis()), formatMillis(serverThread.maxMillis())), false);
+		}
+		source.sendFeedback(() -> message("stats_world_access", SearchMetrics.LOCATE_CALLS.sum(), SearchMetrics.STORED_RESOLVES.sum(),
+				SearchMetrics.LOADED_RESOLVES.sum(), SearchMetrics.ACQUIRED_CHUNKS.sum(), SearchMetrics.GENERATED_CHUNKS.sum()), false);
+		source.sendFeedback(() -> message("stats_cache", SearchCache.resolvedLocations().hits(), SearchCache.resolvedLocations().misses()), false);
+		source.sendFeedback(() -> message("stats_admission", SearchMetrics.SHARED_REQUESTS.sum(), SearchMetrics.RATE_LIMITED.sum(),
+				SearchMetrics.BUSY_REJECTIONS.sum()), false);
+		SearchMetrics.LatencyHistogram upkeep = SearchMetrics.glowUpkeep();
+		source.sendFeedback(() -> message("stats_glow", GlowSessions.sessionCount(), GlowSessions.markerCount(),
+				formatMillis(upkeep.averageMillis()), formatMillis(upkeep.maxMillis())), false);
+		return 1;
+	}
+
+	private static String formatMillis(double millis) {
+		return String.format(Locale.ROOT, "%.2f", millis);
+	}
+
 private static int showCommandUsage(ServerCommandSource source) {
 
 		source.sendFeedback(() -> message("command_list_title").formatted(Formatting.LIGHT_PURPLE), false);
 		source.sendFeedback(() -> message("command_search").formatted(Formatting.YELLOW), false);
 		source.sendFeedback(() -> message("command_search_new").formatted(Formatting.YELLOW), false);
+		source.sendFeedback(() -> message("command_search_cancel").formatted(Formatting.YELLOW), false);
 		source.sendFeedback(() -> message("command_chest").formatted(Formatting.YELLOW), false);
+		source.sendFeedback(() -> message("command_chest_audit").formatted(Formatting.YELLOW), false);
 		source.sendFeedback(() -> message("command_glowing_chest").formatted(Formatting.YELLOW), false);
+		source.sendFeedback(() -> message("command_ore").formatted(Formatting.YELLOW), false);
+		source.sendFeedback(() -> message("command_stats").formatted(Formatting.YELLOW), false);
 		source.sendFeedback(Text::empty, false);
 		source.sendFeedback(() -> message("command_hint_search").formatted(Formatting.RED), false);
 		source.sendFeedback(() -> message("command_hint_glowing").formatted(Formatting.RED), false);
@@ -873,10 +1323,8 @@ private static int showCommandUsage(ServerCommandSource source) {
 
 	}
 // 構造物の座標と種別ラベルを保持
-private record StructureResult(BlockPos pos, ChunkPos chunkPos, String structureTypeKey) {}
-
-// 座標解決時の補助レコード
-private record StructureLocation(BlockPos pos, String structureTypeKey) {}
+private record StructureResult(BlockPos pos, ChunkPos chunkPos, String structureId, String structureTypeKey) {}
 
-	private record GlowKey(RegistryKey<World> worldKey, BlockPos pos) {}
+// 座標解決時の補助レコード（検索キャッシュにもそのまま格納する）
+record StructureLocation(BlockPos pos, String structureTypeKey) {}
 }
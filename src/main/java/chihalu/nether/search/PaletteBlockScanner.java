@@ -0,0 +1,108 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 読み込み済みチャンクから特定のブロック（古代の残骸・ネザー金鉱石など）を探す
+// 各セクションのパレットに対象のブロックが無ければ中身を展開せずに飛ばし、含まれうるセクションだけを
+// サーバースレッドで複製する。複製の展開（ブロック状態の復号と照合）はワーカー側で並列に行う
+final class PaletteBlockScanner {
+	private PaletteBlockScanner() {
+	}
+
+	// サーバースレッドから呼ぶ。水平半径内（高さは全域）のチャンクを調べ、対象を含みうるセクションを複製する
+	static Snapshot snapshot(ServerWorld world, BlockPos center, int radius, Block block, SearchEvents.OreScan scan) {
+		int centerX = center.getX();
+		int centerZ = center.getZ();
+		long radiusSq = (long) radius * radius;
+		List<SectionCopy> sections = new ArrayList<>();
+		int chunksVisited = 0;
+		int sectionsVisited = 0;
+		for (int chunkX = (centerX - radius) >> 4; chunkX <= (centerX + radius) >> 4; chunkX++) {
+			long dx = ChestIndex.axisDistance(centerX, chunkX << 4);
+			for (int chunkZ = (centerZ - radius) >> 4; chunkZ <= (centerZ + radius) >> 4; chunkZ++) {
+				// チャンク柱全体が円の外にあれば中身を見ずに飛ばす
+				long dz = ChestIndex.axisDistance(centerZ, chunkZ << 4);
+				if (dx * dx + dz * dz >= radiusSq) {
+					continue;
+				}
+				WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+				if (chunk == null) {
+					continue;
+				}
+				chunksVisited++;
+				ChunkSection[] chunkSections = chunk.getSectionArray();
+				for (int i = 0; i < chunkSections.length; i++) {
+					ChunkSection section = chunkSections[i];
+					if (section == null || section.isEmpty()) {
+						continue;
+					}
+					sectionsVisited++;
+					// パレットに対象の状態が1つも無ければ、このセクションには存在しない
+					if (!section.hasAny(state -> state.isOf(block))) {
+						continue;
+					}
+					sections.add(new SectionCopy(chunkX << 4, chunk.sectionIndexToCoord(i) << 4, chunkZ << 4,
+							section.getBlockStateContainer().copy()));
+				}
+			}
+		}
+		if (scan != null) {
+			scan.chunksVisited += chunksVisited;
+			scan.sectionsVisited += sectionsVisited;
+			scan.sectionsDecoded += sections.size();
+		}
+		return new Snapshot(centerX, centerZ, radiusSq, block, List.copyOf(sections));
+	}
+
+	// 任意のスレッドから呼べる。複製したセクションを並列に展開し、半径内の一致位置（BlockPos#asLong形式）を返す
+	static LongArrayList scan(Snapshot snapshot) {
+		List<LongArrayList> results = snapshot.sections().parallelStream()
+				.map(section -> section.matches(snapshot))
+				.toList();
+		int total = 0;
+		for (LongArrayList result : results) {
+			total += result.size();
+		}
+		LongArrayList matches = new LongArrayList(total);
+		for (LongArrayList result : results) {
+			matches.addAll(result);
+		}
+		return matches;
+	}
+
+	// 検索条件と、対象を含みうるセクションの複製
+	record Snapshot(int centerX, int centerZ, long radiusSq, Block block, List<SectionCopy> sections) {}
+
+	// 1セクション分のブロック状態の複製と、その最小座標
+	record SectionCopy(int originX, int originY, int originZ, PalettedContainer<BlockState> states) {
+		private LongArrayList matches(Snapshot snapshot) {
+			LongArrayList found = new LongArrayList();
+			Block block = snapshot.block();
+			for (int x = 0; x < 16; x++) {
+				long dx = originX + x - snapshot.centerX();
+				for (int z = 0; z < 16; z++) {
+					long dz = originZ + z - snapshot.centerZ();
+					if (dx * dx + dz * dz >= snapshot.radiusSq()) {
+						continue;
+					}
+					for (int y = 0; y < 16; y++) {
+						if (states.get(x, y, z).isOf(block)) {
+							found.add(BlockPos.asLong(originX + x, originY + y, originZ + z));
+						}
+					}
+				}
+			}
+			return found;
+		}
+	}
+}
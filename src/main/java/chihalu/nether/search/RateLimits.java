@@ -0,0 +1,79 @@
+package chihalu.nether.search;
+
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// プレイヤーごとのトークンバケットで、重いコマンドの連続実行を制限する
+// コマンドごとにトークンの消費量を決め、時間とともに一定の速さで補充する
+// コンソール・コマンドブロックと権限レベル2以上のプレイヤーは制限しない（サーバースレッドからのみ呼び出す）
+final class RateLimits {
+	// 満タンで検索2回分。以降は2.5秒ごとに1トークン（検索なら10秒に1回）
+	private static final double CAPACITY = 8.0;
+	private static final double TOKENS_PER_SECOND = 0.4;
+	static final int SEARCH_COST = 4;
+	static final int CHEST_AUDIT_COST = 4;
+	static final int ORE_COST = 4;
+	static final int GLOW_COST = 2;
+	static final int CHEST_COST = 1;
+	// バケットがこの数を超えたら、満タンに戻ったものを捨てる
+	private static final int PRUNE_THRESHOLD = 256;
+	private static final Map<UUID, Bucket> BUCKETS = new HashMap<>();
+
+	private RateLimits() {
+	}
+
+	// 実行できればトークンを消費して0を、できなければ次に実行できるまでのミリ秒を返す
+	static long acquire(ServerCommandSource source, int cost) {
+		if (source.getEntity() == null || source.hasPermissionLevel(2)) {
+			return 0L;
+		}
+		long now = System.nanoTime();
+		if (BUCKETS.size() > PRUNE_THRESHOLD) {
+			BUCKETS.values().removeIf(bucket -> bucket.refill(now) >= CAPACITY);
+		}
+		Bucket bucket = BUCKETS.computeIfAbsent(source.getEntity().getUuid(), ignored -> new Bucket(now));
+		double available = bucket.refill(now);
+		if (available >= cost) {
+			bucket.tokens = available - cost;
+			return 0L;
+		}
+		SearchMetrics.RATE_LIMITED.increment();
+		return (long) Math.ceil((cost - available) / TOKENS_PER_SECOND * 1000.0);
+	}
+
+	// 受け付けられなかった要求（混雑・実行中）の分のトークンを返す
+	static void refund(ServerCommandSource source, int cost) {
+		if (source.getEntity() == null || source.hasPermissionLevel(2)) {
+			return;
+		}
+		Bucket bucket = BUCKETS.get(source.getEntity().getUuid());
+		if (bucket != null) {
+			bucket.tokens = Math.min(CAPACITY, bucket.refill(System.nanoTime()) + cost);
+		}
+	}
+
+	static void clear() {
+		BUCKETS.clear();
+	}
+
+	private static final class Bucket {
+		private double tokens = CAPACITY;
+		private long updatedNanos;
+
+		private Bucket(long now) {
+			this.updatedNanos = now;
+		}
+
+		// 前回からの経過時間分を補充し、現在のトークン数を返す
+		private double refill(long now) {
+			double elapsedSeconds = (now - updatedNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+			tokens = Math.min(CAPACITY, tokens + elapsedSeconds * TOKENS_PER_SECOND);
+			updatedNanos = now;
+			return tokens;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.Util;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// 読み込まれていないチャンクのチェストを、リージョンファイルから直接数える
+// チャンクはサーバーへ読み込まず、NBTもblock_entities以外は読み飛ばすだけで実体化しない
+final class RegionChestScanner {
+	private static final byte TAG_END = 0;
+	private static final byte TAG_BYTE = 1;
+	private static final byte TAG_SHORT = 2;
+	private static final byte TAG_INT = 3;
+	private static final byte TAG_LONG = 4;
+	private static final byte TAG_FLOAT = 5;
+	private static final byte TAG_DOUBLE = 6;
+	private static final byte TAG_BYTE_ARRAY = 7;
+	private static final byte TAG_STRING = 8;
+	private static final byte TAG_LIST = 9;
+	private static final byte TAG_COMPOUND = 10;
+	private static final byte TAG_INT_ARRAY = 11;
+	private static final byte TAG_LONG_ARRAY = 12;
+
+	private RegionChestScanner() {
+	}
+
+	// 半径内で、読み込み済み集合に含まれないチャンクのチェスト数を数える
+	// scanを渡すと、読んだチャンク数とブロックエンティティ数をJFRイベントへ加算する
+	// 走査は共通のForkJoinプールで行うためジョブの割り込みが届かない。チャンクごとにcancellationCheckを呼び、
+	// キャンセル済みなら投げられた例外（CancellationException）で全リージョンの走査を打ち切る
+	static int countUnloaded(Path regionDir, BlockPos center, int radius, LongSet loadedChunks, SearchEvents.ChestScan scan,
+			Runnable cancellationCheck) {
+		Long2ObjectOpenHashMap<LongArrayList> chunksByRegion = new Long2ObjectOpenHashMap<>();
+		long radiusSq = (long) radius * radius;
+		for (int chunkX = (center.getX() - radius) >> 4; chunkX <= (center.getX() + radius) >> 4; chunkX++) {
+			long dx = ChestIndex.axisDistance(center.getX(), chunkX << 4);
+			for (int chunkZ = (center.getZ() - radius) >> 4; chunkZ <= (center.getZ() + radius) >> 4; chunkZ++) {
+				long dz = ChestIndex.axisDistance(center.getZ(), chunkZ << 4);
+				long chunk = ChunkPos.toLong(chunkX, chunkZ);
+				if (dx * dx + dz * dz >= radiusSq || loadedChunks.contains(chunk)) {
+					continue;
+				}
+				chunksByRegion.computeIfAbsent(ChunkPos.toLong(chunkX >> 5, chunkZ >> 5), key -> new LongArrayList()).add(chunk);
+			}
+		}
+		List<LongArrayList> regions = new ArrayList<>(chunksByRegion.values());
+		// リージョンファイル単位で並列に走査する
+		List<Tally> results = regions.parallelStream()
+				.map(chunks -> scanRegion(regionDir, chunks, center, radiusSq, cancellationCheck))
+				.toList();
+		Tally total = new Tally();
+		for (Tally result : results) {
+			total.chests += result.chests;
+			total.chunks += result.chunks;
+			total.blockEntities += result.blockEntities;
+		}
+		if (scan != null) {
+			scan.chunksVisited += total.chunks;
+			scan.blockEntitiesVisited += total.blockEntities;
+			scan.chests += total.chests;
+		}
+		return total.chests;
+	}
+
+	private static Tally scanRegion(Path regionDir, LongArrayList chunks, BlockPos center, long radiusSq, Runnable cancellationCheck) {
+		Tally tally = new Tally();
+		long first = chunks.getLong(0);
+		Path file = RegionChunkReader.regionFile(regionDir, ChunkPos.getPackedX(first), ChunkPos.getPackedZ(first));
+		if (!Files.isRegularFile(file)) {
+			return tally;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer region = mapRegion(channel);
+			for (int i = 0; i < chunks.size(); i++) {
+				cancellationCheck.run();
+				long chunk = chunks.getLong(i);
+				scanChunk(regionDir, region, ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk), center, radiusSq, tally);
+			}
+		} catch (IOException e) {
+			NetherSearch.LOGGER.warn("リージョンファイル {} の走査に失敗しました: {}", file.getFileName(), e.toString());
+		}
+		return tally;
+	}
+
+	// 読み取り専用でメモリマップする。Windowsではマップ中のファイルをサーバーが拡張できないため通常読み込みにする
+	private static ByteBuffer mapRegion(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (Util.getOperatingSystem() != Util.OperatingSystem.WINDOWS) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		return buffer.flip();
+	}
+
+	private static void scanChunk(Path regionDir, ByteBuffer region, int chunkX, int chunkZ, BlockPos center, long radiusSq, Tally tally) {
+		int headerOffset = RegionChunkReader.headerOffset(chunkX, chunkZ);
+		if (region.limit() < headerOffset + Integer.BYTES) {
+			return;
+		}
+		int location = region.getInt(headerOffset);
+		long start = (long) (location >>> 8) * RegionChunkReader.SECTOR_BYTES;
+		long end = start + (long) (location & 0xFF) * RegionChunkReader.SECTOR_BYTES;
+		if (location == 0 || start < 2L * RegionChunkReader.SECTOR_BYTES || end > region.limit()) {
+			return;
+		}
+		ByteBuffer slice = region.slice((int) start, (int) (end - start));
+		try (DataInputStream input = RegionChunkReader.openPayload(regionDir, chunkX, chunkZ, slice)) {
+			if (input != null) {
+				tally.chunks++;
+				tally.chests += countChests(input, center, radiusSq, tally);
+			}
+		} catch (IOException e) {
+			NetherSearch.LOGGER.debug("チャンク[{}, {}]のNBTを読み取れませんでした: {}", chunkX, chunkZ, e.toString());
+		}
+	}
+
+	// ルート直下のblock_entities（1.18より前の形式ではLevel/TileEntities）だけを解釈する
+	static int countChests(DataInputStream input, BlockPos center, long radiusSq, Tally tally) throws IOException {
+		if (input.readByte() != TAG_COMPOUND) {
+			return 0;
+		}
+		skipString(input);
+		return countInCompound(input, center, radiusSq, 0, tally);
+	}
+
+	private static int countInCompound(DataInputStream input, BlockPos center, long radiusSq, int depth, Tally tally) throws IOException {
+		int count = 0;
+		while (true) {
+			byte type = input.readByte();
+			if (type == TAG_END) {
+				return count;
+			}
+			String name = input.readUTF();
+			if (type == TAG_LIST && ("block_entities".equals(name) || "TileEntities".equals(name))) {
+				count += countInBlockEntityList(input, center, radiusSq, tally);
+			} else if (type == TAG_COMPOUND && depth == 0 && "Level".equals(name)) {
+				count += countInCompound(input, center, radiusSq, depth + 1, tally);
+			} else {
+				skipPayload(input, type);
+			}
+		}
+	}
+
+	private static int countInBlockEntityList(DataInputStream input, BlockPos center, long radiusSq, Tally tally) throws IOException {
+		byte elementType = input.readByte();
+		int length = input.readInt();
+		if (elementType != TAG_COMPOUND) {
+			for (int i = 0; i < length; i++) {
+				skipPayload(input, elementType);
+			}
+			return 0;
+		}
+		tally.blockEntities += length;
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			String id = null;
+			int x = 0;
+			int y = 0;
+			int z = 0;
+			while (true) {
+				byte type = input.readByte();
+				if (type == TAG_END) {
+					break;
+				}
+				String name = input.readUTF();
+				if (type == TAG_STRING && "id".equals(name)) {
+					id = input.readUTF();
+				} else if (type == TAG_INT && name.length() == 1) {
+					int value = input.readInt();
+					switch (name.charAt(0)) {
+						case 'x' -> x = value;
+						case 'y' -> y = value;
+						case 'z' -> z = value;
+						default -> {
+						}
+					}
+				} else {
+					skipPayload(input, type);
+				}
+			}
+			if (isChestId(id)) {
+				long dx = x - center.getX();
+				long dy = y - center.getY();
+				long dz = z - center.getZ();
+				if (dx * dx + dy * dy + dz * dz < radiusSq) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	// ChestBlockEntityに相当するID（通常・トラップチェスト）
+	private static boolean isChestId(String id) {
+		return "minecraft:chest".equals(id) || "minecraft:trapped_chest".equals(id)
+				|| "Chest".equals(id);
+	}
+
+	private static void skipPayload(DataInputStream input, byte type) throws IOException {
+		switch (type) {
+			case TAG_BYTE -> skipFully(input, 1);
+			case TAG_SHORT -> skipFully(input, 2);
+			case TAG_INT, TAG_FLOAT -> skipFully(input, 4);
+			case TAG_LONG, TAG_DOUBLE -> skipFully(input, 8);
+			case TAG_BYTE_ARRAY -> skipFully(input, input.readInt());
+			case TAG_STRING -> skipString(input);
+			case TAG_INT_ARRAY -> skipFully(input, input.readInt() * 4L);
+			case TAG_LONG_ARRAY -> skipFully(input, input.readInt() * 8L);
+			case TAG_LIST -> {
+				byte elementType = input.readByte();
+				int length = input.readInt();
+				for (int i = 0; i < length; i++) {
+					skipPayload(input, elementType);
+				}
+			}
+			case TAG_COMPOUND -> {
+				while (true) {
+					byte nested = input.readByte();
+					if (nested == TAG_END) {
+						break;
+					}
+					skipString(input);
+					skipPayload(input, nested);
+				}
+			}
+			default -> throw new IOException("不明なNBTタグ種別: " + type);
+		}
+	}
+
+	private static void skipString(DataInputStream input) throws IOException {
+		skipFully(input, input.readUnsignedShort());
+	}
+
+	private static void skipFully(DataInputStream input, long bytes) throws IOException {
+		long remaining = bytes;
+		while (remaining > 0) {
+			int skipped = input.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+
+	// リージョン1つ分の集計（リージョンごとに別スレッドで使い、最後に合算する）
+	static final class Tally {
+		private int chests;
+		private int chunks;
+		private int blockEntities;
+	}
+}
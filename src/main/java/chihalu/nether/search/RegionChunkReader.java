@@ -0,0 +1,127 @@
+package chihalu.nether.search;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeTracker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// サーバーのチャンク管理を通さず、リージョンファイル(.mca)から保存済みチャンクのNBTを読み取り専用で取り出す
+final class RegionChunkReader {
+	static final int SECTOR_BYTES = 4096;
+	private static final int COMPRESSION_GZIP = 1;
+	private static final int COMPRESSION_DEFLATE = 2;
+	private static final int COMPRESSION_NONE = 3;
+	private static final int COMPRESSION_LZ4 = 4;
+	private static final int EXTERNAL_FLAG = 0x80;
+
+	private RegionChunkReader() {
+	}
+
+	static Path regionFile(Path regionDir, int chunkX, int chunkZ) {
+		return regionDir.resolve("r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
+	}
+
+	// 保存済みチャンクのNBTを返す。ディスク上に存在しない場合はnull
+	static NbtCompound readChunk(Path regionDir, int chunkX, int chunkZ) throws IOException {
+		Path file = regionFile(regionDir, chunkX, chunkZ);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES);
+			channel.read(entry, headerOffset(chunkX, chunkZ));
+			entry.flip();
+			if (entry.remaining() < Integer.BYTES) {
+				return null;
+			}
+			int location = entry.getInt();
+			int sectorOffset = location >>> 8;
+			int sectorCount = location & 0xFF;
+			if (sectorOffset < 2 || sectorCount == 0) {
+				return null;
+			}
+			ByteBuffer data = ByteBuffer.allocate(sectorCount * SECTOR_BYTES);
+			long position = (long) sectorOffset * SECTOR_BYTES;
+			while (data.hasRemaining()) {
+				if (channel.read(data, position + data.position()) < 0) {
+					break;
+				}
+			}
+			data.flip();
+			try (DataInputStream input = openPayload(regionDir, chunkX, chunkZ, data)) {
+				return input != null ? NbtIo.readCompound(input, NbtSizeTracker.ofUnlimitedBytes()) : null;
+			}
+		}
+	}
+
+	// リージョンファイルのヘッダーだけを見て、チャンクが保存済みかを返す
+	static boolean isSaved(Path regionDir, int chunkX, int chunkZ) {
+		Path file = regionFile(regionDir, chunkX, chunkZ);
+		if (!Files.isRegularFile(file)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES);
+			channel.read(entry, headerOffset(chunkX, chunkZ));
+			entry.flip();
+			return entry.remaining() == Integer.BYTES && entry.getInt() != 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// チャンク1件分のデータ（長さ・圧縮形式・本体）から展開済みストリームを作る
+	static DataInputStream openPayload(Path regionDir, int chunkX, int chunkZ, ByteBuffer data) throws IOException {
+		if (data.remaining() < 5) {
+			return null;
+		}
+		int length = data.getInt();
+		if (length <= 1 || length - 1 > data.remaining()) {
+			return null;
+		}
+		int compression = data.get() & 0xFF;
+		InputStream raw;
+		if ((compression & EXTERNAL_FLAG) != 0) {
+			// 1MBを超えるチャンクは外部ファイル(.mcc)に保存されている
+			Path external = regionDir.resolve("c." + chunkX + "." + chunkZ + ".mcc");
+			if (!Files.isRegularFile(external)) {
+				return null;
+			}
+			raw = new BufferedInputStream(Files.newInputStream(external, StandardOpenOption.READ));
+			compression &= ~EXTERNAL_FLAG;
+		} else {
+			byte[] payload = new byte[length - 1];
+			data.get(payload);
+			raw = new ByteArrayInputStream(payload);
+		}
+		InputStream decoded = switch (compression) {
+			case COMPRESSION_GZIP -> new GZIPInputStream(raw);
+			case COMPRESSION_DEFLATE -> new InflaterInputStream(raw);
+			case COMPRESSION_NONE -> raw;
+			case COMPRESSION_LZ4 -> new LZ4BlockInputStream(raw);
+			default -> null;
+		};
+		if (decoded == null) {
+			raw.close();
+			return null;
+		}
+		return new DataInputStream(new BufferedInputStream(decoded));
+	}
+
+	static int headerOffset(int chunkX, int chunkZ) {
+		return ((chunkX & 31) + (chunkZ & 31) * 32) * Integer.BYTES;
+	}
+}
@@ -0,0 +1,116 @@
+package chihalu.nether.search;
+
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.world.World;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// 解決済みの中心座標と種別をサーバー全体で共有するキャッシュ
+// 構造物の有無はStructureIndexが答えるため持たず、索引の読み出しを省ける解決結果だけを保持する
+final class SearchCache {
+	private static final int MAX_LOCATION_ENTRIES = 4096;
+	private static final BoundedCache<CellKey, NetherSearch.StructureLocation> RESOLVED_LOCATIONS = new BoundedCache<>(MAX_LOCATION_ENTRIES);
+
+	private SearchCache() {
+	}
+
+	// 開始チャンクから解決済みの中心座標と種別を返す。解決できなかった結果は記録しない
+	static NetherSearch.StructureLocation resolve(RegistryKey<World> worldKey, String structureId, long startChunk, Supplier<NetherSearch.StructureLocation> loader) {
+		CellKey key = new CellKey(worldKey, structureId, startChunk);
+		NetherSearch.StructureLocation cached = RESOLVED_LOCATIONS.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		NetherSearch.StructureLocation resolved = loader.get();
+		if (resolved != null) {
+			RESOLVED_LOCATIONS.put(key, resolved);
+		}
+		return resolved;
+	}
+
+	// ヒット率などの統計を1行にまとめる
+	static String describe() {
+		return String.format(Locale.ROOT, "center %d件 (hit %d / miss %d)",
+				RESOLVED_LOCATIONS.size(), RESOLVED_LOCATIONS.hits(), RESOLVED_LOCATIONS.misses());
+	}
+
+	static void clear() {
+		RESOLVED_LOCATIONS.clear();
+	}
+
+	static BoundedCache<?, ?> resolvedLocations() {
+		return RESOLVED_LOCATIONS;
+	}
+
+	private record CellKey(RegistryKey<World> worldKey, String structureId, long startChunk) {}
+
+	// 最近使われていない項目から追い出す、件数上限付きのLRUキャッシュ
+	static final class BoundedCache<K, V> {
+		private final int maxEntries;
+		private final LinkedHashMap<K, V> entries;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+
+		BoundedCache(int maxEntries) {
+			this.maxEntries = maxEntries;
+			this.entries = new LinkedHashMap<>(256, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					if (size() > BoundedCache.this.maxEntries) {
+						evictions.increment();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		V get(K key) {
+			V value;
+			synchronized (entries) {
+				value = entries.get(key);
+			}
+			if (value != null) {
+				hits.increment();
+			} else {
+				misses.increment();
+			}
+			return value;
+		}
+
+		void put(K key, V value) {
+			synchronized (entries) {
+				entries.put(key, value);
+			}
+		}
+
+		void clear() {
+			synchronized (entries) {
+				entries.clear();
+			}
+		}
+
+		int size() {
+			synchronized (entries) {
+				return entries.size();
+			}
+		}
+
+		long hits() {
+			return hits.sum();
+		}
+
+		long misses() {
+			return misses.sum();
+		}
+
+		long evictions() {
+			return evictions.sum();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package chihalu.nether.search;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.UUID;
+
+// JDK Flight Recorder用のイベント定義
+// 記録が無効な間はshouldCommitがfalseを返すため、項目の組み立ても含めてほぼコストがかからない
+final class SearchEvents {
+	private static final String CATEGORY = "Nether Search";
+
+	private SearchEvents() {
+	}
+
+	// セッションの持ち主のUUIDから、記録用のプレイヤー名を求める（ログアウト済みならUUIDのまま）
+	static String playerName(MinecraftServer server, UUID owner) {
+		ServerPlayerEntity player = server != null ? server.getPlayerManager().getPlayer(owner) : null;
+		return player != null ? player.getName().getString() : owner.toString();
+	}
+
+	static void commitChestScan(ChestScan scan, String player, String source, int radius) {
+		if (scan.shouldCommit()) {
+			scan.player = player;
+			scan.source = source;
+			scan.radius = radius;
+			scan.commit();
+		}
+	}
+
+	@Name("chihalu.netherSearch.Locate")
+	@Label("Structure Locate")
+	@Category(CATEGORY)
+	@Description("One radius-0 locateStructure call for a placement candidate")
+	@StackTrace(false)
+	static final class Locate extends Event {
+		@Label("Player")
+		String player;
+		@Label("Structure")
+		String structure;
+		@Label("Chunk X")
+		int chunkX;
+		@Label("Chunk Z")
+		int chunkZ;
+		@Label("Found")
+		boolean found;
+	}
+
+	@Name("chihalu.netherSearch.Resolve")
+	@Label("Structure Resolve")
+	@Category(CATEGORY)
+	@Description("Resolving a structure center from a loaded or asynchronously acquired chunk")
+	@StackTrace(false)
+	static final class Resolve extends Event {
+		@Label("Player")
+		String player;
+		@Label("Structure")
+		String structure;
+		@Label("Chunk X")
+		int chunkX;
+		@Label("Chunk Z")
+		int chunkZ;
+		@Label("Path")
+		@Description("loaded: already in memory, ticket: acquired asynchronously up to STRUCTURE_STARTS")
+		String path;
+		@Label("Generated")
+		@Description("The chunk was not saved in its region file and had to be generated")
+		boolean generated;
+		@Label("Resolved")
+		boolean resolved;
+	}
+
+	@Name("chihalu.netherSearch.ChestScan")
+	@Label("Chest Scan")
+	@Category(CATEGORY)
+	@Description("Counting or collecting chests from the index or from region files")
+	@StackTrace(false)
+	static final class ChestScan extends Event {
+		@Label("Player")
+		String player;
+		@Label("Source")
+		@Description("index: loaded chunks, region: saved chunks read from disk")
+		String source;
+		@Label("Radius")
+		int radius;
+		@Label("Chunks Visited")
+		int chunksVisited;
+		@Label("Block Entities Visited")
+		int blockEntitiesVisited;
+		@Label("Chests")
+		int chests;
+	}
+
+	@Name("chihalu.netherSearch.OreScan")
+	@Label("Ore Scan")
+	@Category(CATEGORY)
+	@Description("Decoding and matching copied chunk sections for one block on a worker; sections whose palette lacks it are never copied")
+	@StackTrace(false)
+	static final class OreScan extends Event {
+		@Label("Player")
+		String player;
+		@Label("Block")
+		String block;
+		@Label("Radius")
+		int radius;
+		@Label("Chunks Visited")
+		int chunksVisited;
+		@Label("Sections Visited")
+		int sectionsVisited;
+		@Label("Sections Decoded")
+		@Description("Sections whose palette contained the block and were copied and scanned")
+		int sectionsDecoded;
+		@Label("Matches")
+		int matches;
+		@Label("Snapshot Duration")
+		@Description("Time spent copying candidate sections on the server thread; the event itself covers the worker")
+		@Timespan(Timespan.NANOSECONDS)
+		long snapshotDuration;
+	}
+
+	@Name("chihalu.netherSearch.GlowBatch")
+	@Label("Glow Marker Batch")
+	@Category(CATEGORY)
+	@Description("Markers shown or hidden for one glow session change")
+	@StackTrace(false)
+	static final class GlowBatch extends Event {
+		@Label("Player")
+		String player;
+		@Label("World")
+		String world;
+		@Label("Kind")
+		@Description("container, ore")
+		String kind;
+		@Label("Action")
+		@Description("start, expire, replace, disconnect, changed")
+		String action;
+		@Label("Markers Shown")
+		int shown;
+		@Label("Markers Hidden")
+		int hidden;
+	}
+}
@@ -0,0 +1,334 @@
+package chihalu.nether.search;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// 重い検索処理をサーバースレッド外のワーカーで実行し、ワールド操作だけをサーバースレッドへ戻す
+final class SearchJobs {
+	private static final int WORKER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private static final int QUEUE_CAPACITY = 16;
+	// 同時に計算するジョブの上限。相乗りした要求は数えない
+	private static final int MAX_RUNNING_JOBS = WORKER_THREADS * 2;
+	private static final long SERVER_CALL_TIMEOUT_SECONDS = 60;
+	// コンソールやコマンドブロックからの実行は共通の所有者として扱う
+	private static final UUID CONSOLE_OWNER = new UUID(0L, 0L);
+	// 所有者ごとの参加中のジョブ（相乗りした所有者も同じジョブを指す）
+	private static final Map<UUID, SearchJob> ACTIVE_JOBS = new ConcurrentHashMap<>();
+	// 相乗りを受け付けているジョブ
+	private static final Map<Object, SearchJob> SHARED_JOBS = new HashMap<>();
+	private static int runningJobs;
+	// shutdownのたびに進める。打ち切られた後に終わった前の世代のジョブは、新しい世代の実行数を減らさない
+	private static int generation;
+	private static ThreadPoolExecutor executor;
+
+	private SearchJobs() {
+	}
+
+	static StartResult submit(ServerCommandSource source, Task task) {
+		return submit(source, null, task);
+	}
+
+	// shareKeyが同じジョブが実行中なら新たに計算せず、結果の送り先として加わる
+	static synchronized StartResult submit(ServerCommandSource source, Object shareKey, Task task) {
+		UUID owner = ownerOf(source);
+		if (ACTIVE_JOBS.containsKey(owner)) {
+			return StartResult.ALREADY_RUNNING;
+		}
+		if (shareKey != null) {
+			SearchJob shared = SHARED_JOBS.get(shareKey);
+			if (shared != null && shared.subscribe(owner, source)) {
+				ACTIVE_JOBS.put(owner, shared);
+				SearchMetrics.SHARED_REQUESTS.increment();
+				return StartResult.JOINED;
+			}
+		}
+		if (runningJobs >= MAX_RUNNING_JOBS) {
+			SearchMetrics.BUSY_REJECTIONS.increment();
+			return StartResult.BUSY;
+		}
+		SearchJob job = new SearchJob(owner, source, shareKey, generation);
+		ACTIVE_JOBS.put(owner, job);
+		if (shareKey != null) {
+			SHARED_JOBS.put(shareKey, job);
+		}
+		runningJobs++;
+		try {
+			job.future = executor().submit(() -> runJob(job, task));
+			return StartResult.STARTED;
+		} catch (RejectedExecutionException e) {
+			finish(job);
+			SearchMetrics.BUSY_REJECTIONS.increment();
+			return StartResult.BUSY;
+		}
+	}
+
+	// 自分の参加を取り消す。他に送り先が残っているジョブは計算を続ける
+	static synchronized boolean cancel(ServerCommandSource source) {
+		UUID owner = ownerOf(source);
+		SearchJob job = ACTIVE_JOBS.remove(owner);
+		if (job == null) {
+			return false;
+		}
+		if (job.unsubscribe(owner)) {
+			job.cancel();
+		}
+		return true;
+	}
+
+	// サーバー停止時に実行中の検索をすべて打ち切る
+	static synchronized void shutdown() {
+		for (SearchJob job : ACTIVE_JOBS.values()) {
+			job.cancel();
+		}
+		ACTIVE_JOBS.clear();
+		SHARED_JOBS.clear();
+		runningJobs = 0;
+		generation++;
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor executor() {
+		if (executor == null) {
+			AtomicInteger threadIndex = new AtomicInteger();
+			executor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+						Thread thread = new Thread(runnable, "Nether Search Worker-" + threadIndex.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private static void runJob(SearchJob job, Task task) {
+		try {
+			job.checkCancelled();
+			task.run(job);
+		} catch (CancellationException cancelled) {
+			NetherSearch.LOGGER.debug("検索ジョブがキャンセルされました: {}", job.owner);
+		} catch (Exception e) {
+			NetherSearch.LOGGER.error("構造物検索中にエラー", e);
+			job.sendError(Text.translatable("message.nether_search.structure_search_error", e.getClass().getSimpleName()));
+		} finally {
+			finish(job);
+		}
+	}
+
+	// 終了したジョブの参加者と相乗りの受付を片付ける
+	private static synchronized void finish(SearchJob job) {
+		if (job.finished) {
+			return;
+		}
+		job.finished = true;
+		job.closeSubscriptions();
+		for (Subscriber subscriber : job.subscribers()) {
+			ACTIVE_JOBS.remove(subscriber.owner(), job);
+		}
+		if (job.shareKey != null) {
+			SHARED_JOBS.remove(job.shareKey, job);
+		}
+		if (job.generation == generation) {
+			runningJobs--;
+		}
+	}
+
+	static UUID ownerOf(ServerCommandSource source) {
+		return source.getEntity() != null ? source.getEntity().getUuid() : CONSOLE_OWNER;
+	}
+
+	enum StartResult {
+		STARTED,
+		// 同じ内容の実行中のジョブに相乗りした
+		JOINED,
+		ALREADY_RUNNING,
+		BUSY
+	}
+
+	@FunctionalInterface
+	interface Task {
+		void run(SearchJob job) throws Exception;
+	}
+
+	// 結果の送り先。deliveredは送信済みの件数で、ワーカースレッドだけが更新する
+	static final class Subscriber {
+		private final UUID owner;
+		private final ServerCommandSource source;
+		private int delivered;
+
+		private Subscriber(UUID owner, ServerCommandSource source) {
+			this.owner = owner;
+			this.source = source;
+		}
+
+		UUID owner() {
+			return owner;
+		}
+
+		ServerCommandSource source() {
+			return source;
+		}
+
+		int delivered() {
+			return delivered;
+		}
+
+		void markDelivered(int count) {
+			delivered = count;
+		}
+	}
+
+	// ワーカー側から見た1件の検索処理
+	static final class SearchJob {
+		private final UUID owner;
+		private final ServerCommandSource source;
+		private final MinecraftServer server;
+		private final Object shareKey;
+		// 受け付けたときのSearchJobs.generation
+		private final int generation;
+		private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+		// callOnServerでサーバースレッドに戻した処理の合計時間
+		private final LongAdder serverNanos = new LongAdder();
+		private volatile boolean cancelled;
+		private volatile Future<?> future;
+		// 以下はSearchJobsのロック内でのみ触る
+		private boolean closed;
+		private boolean finished;
+
+		private SearchJob(UUID owner, ServerCommandSource source, Object shareKey, int generation) {
+			this.owner = owner;
+			this.source = source;
+			this.server = source.getServer();
+			this.shareKey = shareKey;
+			this.generation = generation;
+			this.subscribers.add(new Subscriber(owner, source));
+		}
+
+		// 計算を始めた要求の実行元
+		ServerCommandSource source() {
+			return source;
+		}
+
+		List<Subscriber> subscribers() {
+			return subscribers;
+		}
+
+		// 以降の相乗りを断る。最後の送信の前に呼び、後から加わった送り先にも全件が届くようにする
+		void closeSubscriptions() {
+			synchronized (SearchJobs.class) {
+				closed = true;
+			}
+		}
+
+		private boolean subscribe(UUID subscriberOwner, ServerCommandSource subscriberSource) {
+			if (closed || cancelled) {
+				return false;
+			}
+			subscribers.add(new Subscriber(subscriberOwner, subscriberSource));
+			return true;
+		}
+
+		// 送り先が1つも残らなければtrue
+		private boolean unsubscribe(UUID subscriberOwner) {
+			subscribers.removeIf(subscriber -> subscriber.owner.equals(subscriberOwner));
+			return subscribers.isEmpty();
+		}
+
+		void checkCancelled() {
+			if (cancelled || Thread.currentThread().isInterrupted()) {
+				throw new CancellationException();
+			}
+		}
+
+		// ワールド状態に触れる処理はサーバースレッドで実行し、結果を待つ
+		<T> T callOnServer(Supplier<T> action) {
+			checkCancelled();
+			return await(server.submit(() -> {
+				checkCancelled();
+				long startNanos = System.nanoTime();
+				try {
+					return action.get();
+				} finally {
+					serverNanos.add(System.nanoTime() - startNanos);
+				}
+			}));
+		}
+
+		// これまでにサーバースレッドで実行した時間
+		long serverNanos() {
+			return serverNanos.sum();
+		}
+
+		// サーバースレッド側で完了する処理（チャンクの取得など）を待つ。キャンセル・タイムアウト時は待つのをやめる
+		<T> T await(CompletableFuture<T> pending) {
+			checkCancelled();
+			try {
+				return pending.get(SERVER_CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				pending.cancel(false);
+				throw new CancellationException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException runtime) {
+					throw runtime;
+				}
+				throw new IllegalStateException(cause);
+			} catch (TimeoutException e) {
+				pending.cancel(false);
+				throw new IllegalStateException("サーバースレッドの応答がタイムアウトしました", e);
+			}
+		}
+
+		void sendFeedback(Text text) {
+			for (Subscriber subscriber : subscribers) {
+				sendFeedback(subscriber, text);
+			}
+		}
+
+		void sendFeedback(Subscriber subscriber, Text text) {
+			if (!cancelled) {
+				server.execute(() -> subscriber.source.sendFeedback(() -> text, false));
+			}
+		}
+
+		void sendError(Text text) {
+			if (!cancelled) {
+				for (Subscriber subscriber : subscribers) {
+					server.execute(() -> subscriber.source.sendError(text));
+				}
+			}
+		}
+
+		private void cancel() {
+			cancelled = true;
+			Future<?> running = future;
+			if (running != null) {
+				running.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package chihalu.nether.search;
+
+import net.minecraft.server.MinecraftServer;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// 各コマンドの所要時間と、検索・発光処理のコストを常時集計する
+// ワーカースレッドとサーバースレッドの両方から記録するため、ロックを使わないLongAdderで数える
+final class SearchMetrics {
+	// 5分ごとに、前回から動きがあればログへ1行出す
+	private static final int LOG_INTERVAL_TICKS = 20 * 60 * 5;
+	private static final Map<Command, LatencyHistogram> COMMAND_LATENCIES = createLatencies();
+	// 1回の実行のうちサーバースレッドを占有した時間（受付時の処理とcallOnServerで戻した処理の合計）
+	private static final Map<Command, LatencyHistogram> SERVER_THREAD = createLatencies();
+	private static final LatencyHistogram GLOW_UPKEEP = new LatencyHistogram();
+	static final LongAdder LOCATE_CALLS = new LongAdder();
+	static final LongAdder STORED_RESOLVES = new LongAdder();
+	static final LongAdder LOADED_RESOLVES = new LongAdder();
+	static final LongAdder ACQUIRED_CHUNKS = new LongAdder();
+	static final LongAdder GENERATED_CHUNKS = new LongAdder();
+	static final LongAdder PREINDEXED_CELLS = new LongAdder();
+	// 記録済みの範囲で、空間索引から直接取り出した候補
+	static final LongAdder INDEXED_CANDIDATES = new LongAdder();
+	static final LongAdder SHARED_REQUESTS = new LongAdder();
+	static final LongAdder RATE_LIMITED = new LongAdder();
+	static final LongAdder BUSY_REJECTIONS = new LongAdder();
+	private static long lastLoggedCommands = 0L;
+
+	private SearchMetrics() {
+	}
+
+	enum Command {
+		SEARCH("search"),
+		CHEST("chest"),
+		CHEST_AUDIT("chest audit"),
+		GLOW("glowing_chest"),
+		ORE("ore");
+
+		private final String label;
+
+		Command(String label) {
+			this.label = label;
+		}
+
+		String label() {
+			return label;
+		}
+	}
+
+	// System.nanoTimeで取った開始時刻からの経過時間を記録する
+	static void recordCommand(Command command, long startNanos) {
+		COMMAND_LATENCIES.get(command).record(System.nanoTime() - startNanos);
+	}
+
+	// サーバースレッドだけで完結するコマンド。所要時間がそのままサーバースレッドの占有時間になる
+	static void recordServerCommand(Command command, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		COMMAND_LATENCIES.get(command).record(nanos);
+		SERVER_THREAD.get(command).record(nanos);
+	}
+
+	// ワーカーで実行したコマンドの、サーバースレッド側の合計時間を記録する
+	static void recordServerThread(Command command, long nanos) {
+		SERVER_THREAD.get(command).record(nanos);
+	}
+
+	static void recordGlowUpkeep(long startNanos) {
+		GLOW_UPKEEP.record(System.nanoTime() - startNanos);
+	}
+
+	static LatencyHistogram latency(Command command) {
+		return COMMAND_LATENCIES.get(command);
+	}
+
+	static LatencyHistogram serverThread(Command command) {
+		return SERVER_THREAD.get(command);
+	}
+
+	static LatencyHistogram glowUpkeep() {
+		return GLOW_UPKEEP;
+	}
+
+	static void tick(MinecraftServer server) {
+		if (server.getTicks() % LOG_INTERVAL_TICKS != 0) {
+			return;
+		}
+		long commands = 0L;
+		for (LatencyHistogram histogram : COMMAND_LATENCIES.values()) {
+			commands += histogram.count();
+		}
+		if (commands == lastLoggedCommands) {
+			return;
+		}
+		lastLoggedCommands = commands;
+		NetherSearch.LOGGER.info("検索統計: {}", describe());
+	}
+
+	// ログ用に全体を1行へまとめる
+	static String describe() {
+		StringBuilder builder = new StringBuilder();
+		for (Command command : Command.values()) {
+			LatencyHistogram histogram = COMMAND_LATENCIES.get(command);
+			builder.append(command.label()).append(' ').append(histogram.describe())
+					.append(String.format(Locale.ROOT, " [サーバースレッド 平均 %.2fms, 最大 %.2fms], ",
+							SERVER_THREAD.get(command).averageMillis(), SERVER_THREAD.get(command).maxMillis()));
+		}
+		builder.append(String.format(Locale.ROOT, "locate %d回, 保存済み解決 %d件, 読み込み済み解決 %d件, チャンク取得 %d件, 新規生成 %d件, 事前索引 %d件, 空間索引から %d件, 相乗り %d件, 回数制限 %d件, 混雑による拒否 %d件, 発光維持 %s, %s",
+				LOCATE_CALLS.sum(), STORED_RESOLVES.sum(), LOADED_RESOLVES.sum(), ACQUIRED_CHUNKS.sum(), GENERATED_CHUNKS.sum(),
+				PREINDEXED_CELLS.sum(), INDEXED_CANDIDATES.sum(), SHARED_REQUESTS.sum(), RATE_LIMITED.sum(), BUSY_REJECTIONS.sum(),
+				GLOW_UPKEEP.describe(), SearchCache.describe()));
+		return builder.toString();
+	}
+
+	static void reset() {
+		for (LatencyHistogram histogram : COMMAND_LATENCIES.values()) {
+			histogram.reset();
+		}
+		for (LatencyHistogram histogram : SERVER_THREAD.values()) {
+			histogram.reset();
+		}
+		GLOW_UPKEEP.reset();
+		LOCATE_CALLS.reset();
+		STORED_RESOLVES.reset();
+		LOADED_RESOLVES.reset();
+		ACQUIRED_CHUNKS.reset();
+		GENERATED_CHUNKS.reset();
+		PREINDEXED_CELLS.reset();
+		INDEXED_CANDIDATES.reset();
+		SHARED_REQUESTS.reset();
+		RATE_LIMITED.reset();
+		BUSY_REJECTIONS.reset();
+		lastLoggedCommands = 0L;
+	}
+
+	private static Map<Command, LatencyHistogram> createLatencies() {
+		Map<Command, LatencyHistogram> latencies = new EnumMap<>(Command.class);
+		for (Command command : Command.values()) {
+			latencies.put(command, new LatencyHistogram());
+		}
+		return latencies;
+	}
+
+	// マイクロ秒単位の2の累乗で区切ったヒストグラム（1µs未満〜約35分）
+	static final class LatencyHistogram {
+		private static final int BUCKETS = 32;
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+		LatencyHistogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			long micros = Math.max(0L, nanos / 1000L);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets[bucket].increment();
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		double averageMillis() {
+			long samples = count.sum();
+			return samples == 0 ? 0.0 : totalNanos.sum() / 1_000_000.0 / samples;
+		}
+
+		double maxMillis() {
+			return maxNanos.get() / 1_000_000.0;
+		}
+
+		// 指定した割合の記録が収まるバケットの上限（ミリ秒）。バケット幅の分だけ大きめに出る
+		double percentileMillis(double fraction) {
+			long samples = count.sum();
+			if (samples == 0) {
+				return 0.0;
+			}
+			long threshold = (long) Math.ceil(samples * fraction);
+			long cumulative = 0L;
+			for (int i = 0; i < BUCKETS; i++) {
+				cumulative += buckets[i].sum();
+				if (cumulative >= threshold) {
+					return (1L << i) / 1000.0;
+				}
+			}
+			return maxMillis();
+		}
+
+		String describe() {
+			return String.format(Locale.ROOT, "%d回 (平均 %.2fms, p50≦%.2fms, p99≦%.2fms, 最大 %.2fms)",
+					count(), averageMillis(), percentileMillis(0.5), percentileMillis(0.99), maxMillis());
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+			count.reset();
+			totalNanos.reset();
+			maxNanos.reset();
+		}
+	}
+}
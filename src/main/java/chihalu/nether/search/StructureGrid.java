@@ -0,0 +1,321 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.Arrays;
+
+// 存在が確認された構造物の開始チャンクを、32チャンク四方のバケットに分けて持つ空間索引（1ワールド・1構造物分）
+// 近い順の列挙は起点のバケットからリング単位で広げ、未展開リングの最短距離より近い候補だけを確定順として返す
+// あわせて、全配置候補を確認済みの範囲を円で覚えておき、その内側ではこの索引だけで最寄りを答えられるようにする
+final class StructureGrid {
+	private static final int BUCKET_SHIFT = 5;
+	private static final int BUCKET_CHUNKS = 1 << BUCKET_SHIFT;
+	// 確認済みの範囲として覚えておく円の数。超えたら最も小さい円を捨てる
+	private static final int MAX_COVERAGE = 8;
+	private final Long2ObjectOpenHashMap<Bucket> buckets = new Long2ObjectOpenHashMap<>();
+	private final int[] coverageX = new int[MAX_COVERAGE];
+	private final int[] coverageZ = new int[MAX_COVERAGE];
+	private final double[] coverageRadius = new double[MAX_COVERAGE];
+	private int coverageCount;
+
+	synchronized boolean contains(long chunk) {
+		Bucket bucket = buckets.get(bucketKey(chunk));
+		return bucket != null && bucket.indexOf(chunk) >= 0;
+	}
+
+	// 登録済みなら訪問済みの印は変えない
+	synchronized void put(long chunk, boolean visited) {
+		Bucket bucket = buckets.computeIfAbsent(bucketKey(chunk), key -> new Bucket());
+		if (bucket.indexOf(chunk) < 0) {
+			bucket.add(chunk, visited);
+		}
+	}
+
+	synchronized void remove(long chunk) {
+		long key = bucketKey(chunk);
+		Bucket bucket = buckets.get(key);
+		if (bucket != null && bucket.remove(chunk) && bucket.size == 0) {
+			buckets.remove(key);
+		}
+	}
+
+	synchronized void setVisited(long chunk) {
+		Bucket bucket = buckets.get(bucketKey(chunk));
+		if (bucket != null) {
+			int index = bucket.indexOf(chunk);
+			if (index >= 0) {
+				bucket.visited[index] = true;
+			}
+		}
+	}
+
+	// 中心(x, z)から半径radius（ブロック、開始チャンク中心までの距離）未満の配置候補をすべて確認済みとして記録する
+	synchronized void markCovered(int x, int z, double radius) {
+		if (radius <= 0.0) {
+			return;
+		}
+		int kept = 0;
+		for (int i = 0; i < coverageCount; i++) {
+			double distance = Math.hypot(coverageX[i] - x, coverageZ[i] - z);
+			if (distance + radius <= coverageRadius[i]) {
+				// 既存の円に含まれている
+				return;
+			}
+			if (distance + coverageRadius[i] <= radius) {
+				// 新しい円に含まれる円は捨てる（同じ中心の円はここで広がる）
+				continue;
+			}
+			coverageX[kept] = coverageX[i];
+			coverageZ[kept] = coverageZ[i];
+			coverageRadius[kept] = coverageRadius[i];
+			kept++;
+		}
+		coverageCount = kept;
+		int slot = coverageCount;
+		if (slot == MAX_COVERAGE) {
+			slot = 0;
+			for (int i = 1; i < coverageCount; i++) {
+				if (coverageRadius[i] < coverageRadius[slot]) {
+					slot = i;
+				}
+			}
+			if (coverageRadius[slot] >= radius) {
+				return;
+			}
+		} else {
+			coverageCount++;
+		}
+		coverageX[slot] = x;
+		coverageZ[slot] = z;
+		coverageRadius[slot] = radius;
+	}
+
+	// (x, z)を中心に、全配置候補を確認済みと言える半径（ブロック）。無ければ0
+	synchronized double coveredRadius(int x, int z) {
+		double best = 0.0;
+		for (int i = 0; i < coverageCount; i++) {
+			best = Math.max(best, coverageRadius[i] - Math.hypot(coverageX[i] - x, coverageZ[i] - z));
+		}
+		return best;
+	}
+
+	// リング上のバケットにある登録をカーソルへ積む
+	private synchronized void collectRing(Cursor cursor, int gridIndex, int ring) {
+		if (buckets.isEmpty()) {
+			return;
+		}
+		for (int dx = -ring; dx <= ring; dx++) {
+			boolean edgeX = dx == -ring || dx == ring;
+			for (int dz = -ring; dz <= ring; dz++) {
+				if (!edgeX && dz != -ring && dz != ring) {
+					continue;
+				}
+				Bucket bucket = buckets.get(ChunkPos.toLong(cursor.originBucketX + dx, cursor.originBucketZ + dz));
+				if (bucket == null) {
+					continue;
+				}
+				for (int i = 0; i < bucket.size; i++) {
+					if (cursor.unvisitedOnly && bucket.visited[i]) {
+						continue;
+					}
+					long chunk = bucket.chunks[i];
+					long distanceSq = cursor.distanceSq(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk));
+					if (distanceSq < cursor.limitSq) {
+						cursor.push(distanceSq, chunk, gridIndex);
+					}
+				}
+			}
+		}
+	}
+
+	private static long bucketKey(long chunk) {
+		return ChunkPos.toLong(ChunkPos.getPackedX(chunk) >> BUCKET_SHIFT, ChunkPos.getPackedZ(chunk) >> BUCKET_SHIFT);
+	}
+
+	// 1バケット分の開始チャンク。構造物の配置間隔はバケットと同程度なので、数件を線形に探す
+	private static final class Bucket {
+		private long[] chunks = new long[2];
+		private boolean[] visited = new boolean[2];
+		private int size;
+
+		private int indexOf(long chunk) {
+			for (int i = 0; i < size; i++) {
+				if (chunks[i] == chunk) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void add(long chunk, boolean isVisited) {
+			if (size == chunks.length) {
+				chunks = Arrays.copyOf(chunks, size * 2);
+				visited = Arrays.copyOf(visited, size * 2);
+			}
+			chunks[size] = chunk;
+			visited[size] = isVisited;
+			size++;
+		}
+
+		private boolean remove(long chunk) {
+			int index = indexOf(chunk);
+			if (index < 0) {
+				return false;
+			}
+			size--;
+			chunks[index] = chunks[size];
+			visited[index] = visited[size];
+			return true;
+		}
+	}
+
+	// 複数の索引をまとめて、起点から近い順に列挙するカーソル（1スレッドで使い回す）
+	// 距離はStructurePlacementEnumeratorと同じく開始チャンク中心までの距離の二乗で、limitSq未満のものだけを返す
+	// 配列が足りている間は列挙中に割り当てを行わない
+	static final class Cursor {
+		private StructureGrid[] grids = new StructureGrid[0];
+		private int originX;
+		private int originZ;
+		private int originChunkX;
+		private int originChunkZ;
+		private int originBucketX;
+		private int originBucketZ;
+		private long limitSq;
+		private boolean unvisitedOnly;
+		private int nextRing;
+		private int maxRing = -1;
+		// 距離の小さい順の二分ヒープ
+		private long[] heapDistanceSq = new long[16];
+		private long[] heapChunk = new long[16];
+		private int[] heapGrid = new int[16];
+		private int heapSize;
+		private long chunk;
+		private long distanceSq;
+		private int gridIndex;
+
+		void reset(StructureGrid[] grids, int originX, int originZ, long limitSq, boolean unvisitedOnly) {
+			this.grids = grids;
+			this.originX = originX;
+			this.originZ = originZ;
+			this.originChunkX = originX >> 4;
+			this.originChunkZ = originZ >> 4;
+			this.originBucketX = originChunkX >> BUCKET_SHIFT;
+			this.originBucketZ = originChunkZ >> BUCKET_SHIFT;
+			this.limitSq = limitSq;
+			this.unvisitedOnly = unvisitedOnly;
+			this.nextRing = 0;
+			this.maxRing = limitSq > 0L ? (int) (Math.sqrt((double) limitSq) / (BUCKET_CHUNKS * 16)) + 2 : -1;
+			this.heapSize = 0;
+		}
+
+		// 次に近い登録へ進む。無ければfalse
+		boolean next() {
+			while (true) {
+				boolean expandable = nextRing <= maxRing;
+				long bound = expandable ? ringLowerBoundSq(nextRing) : Long.MAX_VALUE;
+				if (heapSize > 0 && heapDistanceSq[0] <= bound) {
+					pop();
+					return true;
+				}
+				if (!expandable) {
+					return false;
+				}
+				for (int i = 0; i < grids.length; i++) {
+					grids[i].collectRing(this, i, nextRing);
+				}
+				nextRing++;
+			}
+		}
+
+		long chunk() {
+			return chunk;
+		}
+
+		long distanceSq() {
+			return distanceSq;
+		}
+
+		// reset時に渡した配列での番号
+		int gridIndex() {
+			return gridIndex;
+		}
+
+		// 指定リング上のどのバケットに開始チャンクがあっても、これより近くはならない距離（二乗）
+		private long ringLowerBoundSq(int ring) {
+			if (ring == 0) {
+				return 0L;
+			}
+			int chunks = Math.min(
+					Math.min((originBucketX + ring) * BUCKET_CHUNKS - originChunkX, originChunkX - ((originBucketX - ring + 1) * BUCKET_CHUNKS - 1)),
+					Math.min((originBucketZ + ring) * BUCKET_CHUNKS - originChunkZ, originChunkZ - ((originBucketZ - ring + 1) * BUCKET_CHUNKS - 1)));
+			long blocks = Math.max(0L, chunks * 16L - 8L);
+			return blocks * blocks;
+		}
+
+		private long distanceSq(int chunkX, int chunkZ) {
+			long dx = (chunkX << 4) + 8L - originX;
+			long dz = (chunkZ << 4) + 8L - originZ;
+			return dx * dx + dz * dz;
+		}
+
+		private void push(long entryDistanceSq, long entryChunk, int entryGrid) {
+			if (heapSize == heapChunk.length) {
+				heapDistanceSq = Arrays.copyOf(heapDistanceSq, heapSize * 2);
+				heapChunk = Arrays.copyOf(heapChunk, heapSize * 2);
+				heapGrid = Arrays.copyOf(heapGrid, heapSize * 2);
+			}
+			int index = heapSize++;
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (heapDistanceSq[parent] <= entryDistanceSq) {
+					break;
+				}
+				move(parent, index);
+				index = parent;
+			}
+			set(index, entryDistanceSq, entryChunk, entryGrid);
+		}
+
+		private void pop() {
+			distanceSq = heapDistanceSq[0];
+			chunk = heapChunk[0];
+			gridIndex = heapGrid[0];
+			heapSize--;
+			if (heapSize == 0) {
+				return;
+			}
+			long lastDistanceSq = heapDistanceSq[heapSize];
+			long lastChunk = heapChunk[heapSize];
+			int lastGrid = heapGrid[heapSize];
+			int index = 0;
+			while (true) {
+				int child = index * 2 + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && heapDistanceSq[child + 1] < heapDistanceSq[child]) {
+					child++;
+				}
+				if (heapDistanceSq[child] >= lastDistanceSq) {
+					break;
+				}
+				move(child, index);
+				index = child;
+			}
+			set(index, lastDistanceSq, lastChunk, lastGrid);
+		}
+
+		private void move(int from, int to) {
+			heapDistanceSq[to] = heapDistanceSq[from];
+			heapChunk[to] = heapChunk[from];
+			heapGrid[to] = heapGrid[from];
+		}
+
+		private void set(int index, long entryDistanceSq, long entryChunk, int entryGrid) {
+			heapDistanceSq[index] = entryDistanceSq;
+			heapChunk[index] = entryChunk;
+			heapGrid[index] = entryGrid;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.dimension.DimensionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// 配置候補ごとの確認結果（構造物の有無・中心座標・種別）をワールド・構造物ごとに保存する索引
+// 検索とバックグラウンド索引の両方が書き込み、記録済みの候補はワールドへ問い合わせずに済ませる
+// ファイルはヘッダー（マジック・版・シード）の後に固定長のエントリを追記する形式で、同じチャンクは後のエントリが優先される
+// 構造物が存在する候補はStructureGridにも載せ、近い順の問い合わせに使う
+final class StructureIndex {
+	private static final int MAGIC = 0x4E534958;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+	// チャンク座標・フラグ・x/y/z・種別番号
+	private static final int ENTRY_BYTES = Long.BYTES + 1 + Integer.BYTES * 3 + 1;
+	private static final byte FLAG_PRESENT = 1;
+	private static final byte FLAG_RESOLVED = 2;
+	private static final String DIRECTORY_NAME = "nether-search";
+	private static final String INDEX_DIRECTORY_NAME = "index";
+	// 種別キーはファイルに番号で書く。0は種別なし
+	private static final List<String> TYPE_KEYS = List.of(
+			NetherSearch.BASTION_TYPE_TREASURE_KEY,
+			NetherSearch.BASTION_TYPE_BRIDGE_KEY,
+			NetherSearch.BASTION_TYPE_HOUSING_KEY,
+			NetherSearch.BASTION_TYPE_HOGLIN_KEY);
+	// 構造物が無いことを確認済みの候補
+	private static final Entry ABSENT = new Entry(null, false, null);
+	private static final Map<IndexKey, CellTable> TABLES = new ConcurrentHashMap<>();
+	private static volatile Path worldRoot;
+
+	private StructureIndex() {
+	}
+
+	static void open(MinecraftServer server) {
+		close();
+		worldRoot = server.getSavePath(WorldSavePath.ROOT);
+	}
+
+	static void close() {
+		for (CellTable table : TABLES.values()) {
+			table.close();
+		}
+		TABLES.clear();
+		worldRoot = null;
+	}
+
+	// 構造物の有無が記録済みか
+	static boolean isIndexed(ServerWorld world, String structureId, long startChunk) {
+		return tableFor(world, structureId).get(startChunk) != null;
+	}
+
+	// 中心座標まで解決済みか
+	static boolean isResolved(ServerWorld world, String structureId, long startChunk) {
+		Entry entry = tableFor(world, structureId).get(startChunk);
+		return entry != null && entry.resolved();
+	}
+
+	// 開始チャンクに構造物があればその座標を返す。未記録なら読み込み処理を実行して記録する
+	static BlockPos locate(ServerWorld world, String structureId, long startChunk, Supplier<BlockPos> loader) {
+		CellTable table = tableFor(world, structureId);
+		Entry entry = table.get(startChunk);
+		if (entry != null) {
+			return entry.pos();
+		}
+		BlockPos located = loader.get();
+		recordLocated(world, structureId, startChunk, located);
+		return located;
+	}
+
+	// 解決済みの中心座標と種別を返す。未解決なら読み込み処理を実行し、解決できた場合だけ記録する
+	static NetherSearch.StructureLocation resolve(ServerWorld world, String structureId, long startChunk, Supplier<NetherSearch.StructureLocation> loader) {
+		CellTable table = tableFor(world, structureId);
+		Entry entry = table.get(startChunk);
+		if (entry != null && entry.resolved()) {
+			return new NetherSearch.StructureLocation(entry.pos(), entry.typeKey());
+		}
+		NetherSearch.StructureLocation resolved = loader.get();
+		if (resolved != null) {
+			recordResolved(world, structureId, startChunk, resolved);
+		}
+		return resolved;
+	}
+
+	// 確認した構造物の有無を記録する。解決済みのエントリは上書きしない
+	static void recordLocated(ServerWorld world, String structureId, long startChunk, BlockPos located) {
+		CellTable table = tableFor(world, structureId);
+		if (!table.isResolved(startChunk)) {
+			table.put(startChunk, located != null ? new Entry(located.toImmutable(), false, null) : ABSENT);
+		}
+	}
+
+	static void recordResolved(ServerWorld world, String structureId, long startChunk, NetherSearch.StructureLocation location) {
+		tableFor(world, structureId).put(startChunk, new Entry(location.pos().toImmutable(), true, location.structureTypeKey()));
+	}
+
+	// 構造物が存在する開始チャンクの空間索引。未読み込みなら索引ファイルを読み込む
+	static StructureGrid gridFor(ServerWorld world, String structureId) {
+		return tableFor(world, structureId).grid();
+	}
+
+	// 表示済みになった構造物を空間索引にも反映する（DiscoveredStructureStoreへの記録の後に呼ぶ）
+	static void markVisited(ServerWorld world, String structureId, long startChunk) {
+		tableFor(world, structureId).grid().setVisited(startChunk);
+	}
+
+	// 中心(x, z)から半径radius未満の配置候補をすべて記録済みであることを覚えておく（メモリ上のみ）
+	static void markCovered(ServerWorld world, String structureId, int x, int z, double radius) {
+		tableFor(world, structureId).grid().markCovered(x, z, radius);
+	}
+
+	static double coveredRadius(ServerWorld world, String structureId, int x, int z) {
+		return tableFor(world, structureId).grid().coveredRadius(x, z);
+	}
+
+	private static CellTable tableFor(ServerWorld world, String structureId) {
+		IndexKey key = new IndexKey(world.getRegistryKey(), Identifier.of(structureId));
+		return TABLES.computeIfAbsent(key, ignored -> new CellTable(resolveFile(key), world, key.structureId()));
+	}
+
+	private static Path resolveFile(IndexKey key) {
+		Path root = worldRoot;
+		if (root == null) {
+			return null;
+		}
+		Path dimensionDir = DimensionType.getSaveDirectory(key.worldKey(), root);
+		String fileName = key.structureId().getNamespace() + "_" + key.structureId().getPath().replace('/', '_') + ".bin";
+		return dimensionDir.resolve("data").resolve(DIRECTORY_NAME).resolve(INDEX_DIRECTORY_NAME).resolve(fileName);
+	}
+
+	private record IndexKey(RegistryKey<World> worldKey, Identifier structureId) {}
+
+	// posがnullなら構造物なし。resolvedがfalseならposはlocateStructureの返した座標
+	private record Entry(BlockPos pos, boolean resolved, String typeKey) {}
+
+	// 1構造物分の索引。初回アクセス時に読み込み、更新分だけを追記する
+	private static final class CellTable {
+		private final Path file;
+		private final ServerWorld world;
+		private final Identifier structureId;
+		private final long seed;
+		private final StructureGrid grid = new StructureGrid();
+		private Long2ObjectOpenHashMap<Entry> cells;
+		private FileChannel channel;
+		private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_BYTES);
+
+		private CellTable(Path file, ServerWorld world, Identifier structureId) {
+			this.file = file;
+			this.world = world;
+			this.structureId = structureId;
+			this.seed = world.getSeed();
+		}
+
+		synchronized Entry get(long startChunk) {
+			return loaded().get(startChunk);
+		}
+
+		synchronized boolean isResolved(long startChunk) {
+			Entry entry = loaded().get(startChunk);
+			return entry != null && entry.resolved();
+		}
+
+		synchronized StructureGrid grid() {
+			loaded();
+			return grid;
+		}
+
+		synchronized void put(long startChunk, Entry entry) {
+			if (entry.equals(loaded().put(startChunk, entry))) {
+				return;
+			}
+			updateGrid(startChunk, entry);
+			if (file == null) {
+				return;
+			}
+			try {
+				entryBuffer.clear();
+				writeEntry(entryBuffer, startChunk, entry);
+				entryBuffer.flip();
+				while (entryBuffer.hasRemaining()) {
+					openChannel().write(entryBuffer);
+				}
+			} catch (IOException e) {
+				NetherSearch.LOGGER.warn("構造物索引の書き込みに失敗しました: {}", e.toString());
+			}
+		}
+
+		synchronized void close() {
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				NetherSearch.LOGGER.debug("構造物索引ファイルを閉じる際に失敗: {}", e.toString());
+			}
+			channel = null;
+		}
+
+		private Long2ObjectOpenHashMap<Entry> loaded() {
+			if (cells == null) {
+				cells = new Long2ObjectOpenHashMap<>();
+				if (file != null) {
+					readFile();
+				}
+				for (Long2ObjectMap.Entry<Entry> cell : cells.long2ObjectEntrySet()) {
+					updateGrid(cell.getLongKey(), cell.getValue());
+				}
+			}
+			return cells;
+		}
+
+		private void updateGrid(long startChunk, Entry entry) {
+			if (entry.pos() == null) {
+				grid.remove(startChunk);
+			} else if (!grid.contains(startChunk)) {
+				grid.put(startChunk, DiscoveredStructureStore.isKnown(world, structureId, startChunk));
+			}
+		}
+
+		private void readFile() {
+			if (!Files.isRegularFile(file)) {
+				return;
+			}
+			try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(reader.size(), Integer.MAX_VALUE - 8));
+				while (buffer.hasRemaining()) {
+					if (reader.read(buffer) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+						|| buffer.getLong() != seed) {
+					// 形式やシードが異なる索引は別ワールドのものとして破棄する
+					NetherSearch.LOGGER.info("構造物索引 {} を初期化します", file.getFileName());
+					Files.delete(file);
+					return;
+				}
+				cells.ensureCapacity(buffer.remaining() / ENTRY_BYTES);
+				while (buffer.remaining() >= ENTRY_BYTES) {
+					long startChunk = buffer.getLong();
+					cells.put(startChunk, readEntry(buffer));
+				}
+			} catch (IOException e) {
+				NetherSearch.LOGGER.warn("構造物索引の読み込みに失敗しました: {}", e.toString());
+			}
+		}
+
+		private FileChannel openChannel() throws IOException {
+			if (channel != null) {
+				return channel;
+			}
+			Files.createDirectories(file.getParent());
+			boolean fresh = !Files.exists(file) || Files.size(file) < HEADER_BYTES;
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (fresh) {
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(seed).flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			} else {
+				// 途中で途切れた書き込みがあればエントリ境界まで切り詰める
+				long size = channel.size();
+				long aligned = HEADER_BYTES + ((size - HEADER_BYTES) / ENTRY_BYTES) * ENTRY_BYTES;
+				if (aligned != size) {
+					channel.truncate(aligned);
+				}
+				channel.position(aligned);
+			}
+			return channel;
+		}
+
+		private static void writeEntry(ByteBuffer buffer, long startChunk, Entry entry) {
+			buffer.putLong(startChunk);
+			BlockPos pos = entry.pos();
+			if (pos == null) {
+				buffer.put((byte) 0).putInt(0).putInt(0).putInt(0).put((byte) 0);
+				return;
+			}
+			byte flags = FLAG_PRESENT;
+			if (entry.resolved()) {
+				flags |= FLAG_RESOLVED;
+			}
+			buffer.put(flags).putInt(pos.getX()).putInt(pos.getY()).putInt(pos.getZ());
+			// List.ofはnullの検索で例外を投げるため、種別なしは先に分ける
+			buffer.put((byte) (entry.typeKey() != null ? TYPE_KEYS.indexOf(entry.typeKey()) + 1 : 0));
+		}
+
+		private static Entry readEntry(ByteBuffer buffer) {
+			byte flags = buffer.get();
+			int x = buffer.getInt();
+			int y = buffer.getInt();
+			int z = buffer.getInt();
+			int type = buffer.get();
+			if ((flags & FLAG_PRESENT) == 0) {
+				return ABSENT;
+			}
+			String typeKey = type > 0 && type <= TYPE_KEYS.size() ? TYPE_KEYS.get(type - 1) : null;
+			return new Entry(new BlockPos(x, y, z), (flags & FLAG_RESOLVED) != 0, typeKey);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.gen.chunk.placement.RandomSpreadStructurePlacement;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// ワールドシードから構造物の開始チャンク候補を計算し、起点から近い順に列挙する
+// 配置セルをリング単位で展開し、未展開リングの最短距離より近い候補だけを確定順として返す
+final class StructurePlacementEnumerator {
+	private final PlacementGrid[] grids;
+	private final int[] nextRing;
+	private final int[] maxRing;
+	private final int[] originCellX;
+	private final int[] originCellZ;
+	private final int originX;
+	private final int originZ;
+	private final int originChunkX;
+	private final int originChunkZ;
+	private final long maxDistanceSq;
+	private final PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingLong(Candidate::distanceSq));
+	private final LongSet queued = new LongOpenHashSet();
+
+	StructurePlacementEnumerator(List<PlacementGrid> grids, int originX, int originZ, int maxDistance) {
+		this.grids = grids.toArray(new PlacementGrid[0]);
+		this.originX = originX;
+		this.originZ = originZ;
+		this.originChunkX = originX >> 4;
+		this.originChunkZ = originZ >> 4;
+		this.maxDistanceSq = (long) maxDistance * maxDistance;
+		this.nextRing = new int[this.grids.length];
+		this.maxRing = new int[this.grids.length];
+		this.originCellX = new int[this.grids.length];
+		this.originCellZ = new int[this.grids.length];
+		for (int i = 0; i < this.grids.length; i++) {
+			int spacing = this.grids[i].spacing();
+			this.maxRing[i] = maxDistance / (spacing * 16) + 2;
+			this.originCellX[i] = Math.floorDiv(originChunkX, spacing);
+			this.originCellZ[i] = Math.floorDiv(originChunkZ, spacing);
+		}
+	}
+
+	// 次に近い候補を返す。探索範囲を使い切った場合はnull
+	Candidate next() {
+		while (true) {
+			int gridIndex = -1;
+			long bestBound = Long.MAX_VALUE;
+			for (int i = 0; i < grids.length; i++) {
+				if (nextRing[i] > maxRing[i]) {
+					continue;
+				}
+				long bound = ringLowerBoundSq(i, nextRing[i]);
+				if (bound < bestBound) {
+					bestBound = bound;
+					gridIndex = i;
+				}
+			}
+			Candidate head = frontier.peek();
+			if (gridIndex < 0 || (head != null && head.distanceSq() <= bestBound)) {
+				return frontier.poll();
+			}
+			expandRing(gridIndex, nextRing[gridIndex]++);
+		}
+	}
+
+	private void expandRing(int gridIndex, int ring) {
+		PlacementGrid grid = grids[gridIndex];
+		int centerX = originCellX[gridIndex];
+		int centerZ = originCellZ[gridIndex];
+		for (int dx = -ring; dx <= ring; dx++) {
+			boolean edgeX = dx == -ring || dx == ring;
+			for (int dz = -ring; dz <= ring; dz++) {
+				if (!edgeX && dz != -ring && dz != ring) {
+					continue;
+				}
+				long chunk = grid.startChunk(centerX + dx, centerZ + dz);
+				long distanceSq = distanceSq(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk));
+				if (distanceSq > maxDistanceSq || !queued.add(chunk)) {
+					continue;
+				}
+				frontier.add(new Candidate(chunk, distanceSq, gridIndex));
+			}
+		}
+	}
+
+	// 指定リング上のどのセルに開始チャンクがあっても、これより近くはならない距離（二乗）
+	private long ringLowerBoundSq(int gridIndex, int ring) {
+		if (ring <= 1) {
+			return 0L;
+		}
+		int spacing = grids[gridIndex].spacing();
+		int cellX = originCellX[gridIndex];
+		int cellZ = originCellZ[gridIndex];
+		int chunks = Math.min(
+				Math.min((cellX + ring) * spacing - originChunkX, originChunkX - ((cellX - ring + 1) * spacing - 1)),
+				Math.min((cellZ + ring) * spacing - originChunkZ, originChunkZ - ((cellZ - ring + 1) * spacing - 1)));
+		long blocks = Math.max(0L, chunks * 16L - 8L);
+		return blocks * blocks;
+	}
+
+	private long distanceSq(int chunkX, int chunkZ) {
+		long dx = (chunkX << 4) + 8L - originX;
+		long dz = (chunkZ << 4) + 8L - originZ;
+		return dx * dx + dz * dz;
+	}
+
+	// 列挙された開始チャンク候補
+	record Candidate(long chunkPos, long distanceSq, int gridIndex) {
+		ChunkPos toChunkPos() {
+			return new ChunkPos(chunkPos);
+		}
+	}
+
+	// 配置セルの間隔とセルごとの開始チャンク計算を抽象化したもの
+	interface PlacementGrid {
+		int spacing();
+
+		long startChunk(int cellX, int cellZ);
+
+		static PlacementGrid of(RandomSpreadStructurePlacement placement, long seed) {
+			int spacing = placement.getSpacing();
+			return new PlacementGrid() {
+				@Override
+				public int spacing() {
+					return spacing;
+				}
+
+				@Override
+				public long startChunk(int cellX, int cellZ) {
+					return placement.getStartChunk(seed, cellX * spacing, cellZ * spacing).toLong();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package chihalu.nether.search;
+
+import net.minecraft.structure.StructurePiece;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 構造物ごとに、ピース一覧から代表座標と種別を求める処理を登録しておく
+// 登録の無い構造物（Mod・データパックの構造物など）は、全体の範囲の中心を代表座標にする
+final class StructureResolvers {
+	private static final Map<String, Resolver> RESOLVERS = new ConcurrentHashMap<>();
+
+	static {
+		// 要塞は十字路のある橋の交差点を代表座標にする
+		register("fortress", pieces -> {
+			BlockPos crossing = NetherSearch.findBridgeCrossing(pieces);
+			return crossing != null ? new NetherSearch.StructureLocation(crossing, null) : null;
+		});
+		// ピグリン要塞は種別ごとの特徴的なピースから座標と種別を求める
+		register("bastion_remnant", NetherSearch::findBastionDetails);
+	}
+
+	private StructureResolvers() {
+	}
+
+	// structureIdはStructureTargets.idOfと同じ形式（バニラはパスのみ）
+	static void register(String structureId, Resolver resolver) {
+		RESOLVERS.put(structureId, resolver);
+	}
+
+	// 登録済みの処理で求めた座標と種別を返す。登録が無いか求められなかった場合はnull
+	static NetherSearch.StructureLocation resolve(String structureId, List<StructurePiece> pieces) {
+		Resolver resolver = RESOLVERS.get(structureId);
+		return resolver != null ? resolver.resolve(pieces) : null;
+	}
+
+	// ワーカースレッドからも呼ばれるため、ワールドには触れずピースだけから求めること
+	@FunctionalInterface
+	interface Resolver {
+		NetherSearch.StructureLocation resolve(List<StructurePiece> pieces);
+	}
+}
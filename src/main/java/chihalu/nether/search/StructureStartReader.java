@@ -0,0 +1,57 @@
+package chihalu.nether.search;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.structure.StructureContext;
+import net.minecraft.structure.StructureStart;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.dimension.DimensionType;
+import net.minecraft.world.gen.structure.Structure;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+// 保存済みチャンクのstructures/startsから構造物の開始情報とピース一覧を復元する
+// チャンクをワールドへ読み込まないため、探索済みの地形ではチャンクロードが発生しない
+final class StructureStartReader {
+	private StructureStartReader() {
+	}
+
+	static Path regionDirectory(ServerWorld world) {
+		Path root = world.getServer().getSavePath(WorldSavePath.ROOT);
+		return DimensionType.getSaveDirectory(world.getRegistryKey(), root).resolve("region");
+	}
+
+	// ディスク上に開始情報があればピース付きで返す。未保存・未生成・読み取り失敗時はnull
+	static StructureStart read(ServerWorld world, ChunkPos chunkPos, RegistryEntry<Structure> structure) {
+		Optional<RegistryKey<Structure>> key = structure.getKey();
+		if (key.isEmpty()) {
+			return null;
+		}
+		try {
+			NbtCompound chunkNbt = RegionChunkReader.readChunk(regionDirectory(world), chunkPos.x, chunkPos.z);
+			if (chunkNbt == null) {
+				return null;
+			}
+			// バージョン間でgetterの戻り値が変わっているため、要素を取り出してから型を確認する
+			if (!(chunkNbt.get("structures") instanceof NbtCompound structures)
+					|| !(structures.get("starts") instanceof NbtCompound starts)) {
+				return null;
+			}
+			NbtElement startNbt = starts.get(key.get().getValue().toString());
+			if (!(startNbt instanceof NbtCompound startCompound)) {
+				return null;
+			}
+			StructureStart start = StructureStart.fromNbt(StructureContext.from(world), startCompound, world.getSeed());
+			return start != null && start.hasChildren() ? start : null;
+		} catch (Exception e) {
+			// 書き込み途中のリージョンなどは通常の解決処理へ任せる
+			NetherSearch.LOGGER.debug("リージョンから構造物情報を読み取れませんでした {}: {}", chunkPos, e.toString());
+			return null;
+		}
+	}
+}
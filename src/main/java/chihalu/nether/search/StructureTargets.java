@@ -0,0 +1,130 @@
+package chihalu.nether.search;
+
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.entry.RegistryEntryList;
+import net.minecraft.registry.tag.TagKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.gen.chunk.ChunkGenerator;
+import net.minecraft.world.gen.chunk.placement.RandomSpreadStructurePlacement;
+import net.minecraft.world.gen.chunk.placement.StructurePlacement;
+import net.minecraft.world.gen.chunk.placement.StructurePlacementCalculator;
+import net.minecraft.world.gen.structure.Structure;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// 検索対象の構造物を配置（構造物セット）ごとにまとめ、1回の列挙で全構造物の候補を確認できるようにする
+// 同じ配置の構造物は1つの配置セルに1つしか置かれないため、セルごとのlocateも1回で済む
+final class StructureTargets {
+	// 対象をすべての構造物にする指定
+	static final String ALL = "all";
+
+	private StructureTargets() {
+	}
+
+	// 「all」「#タグ」「構造物ID」のいずれかから対象の構造物を求める。見つからなければ空
+	static List<RegistryEntry<Structure>> resolve(RegistryWrapper.Impl<Structure> registry, String spec) {
+		if (ALL.equals(spec)) {
+			return List.copyOf(registry.streamEntries().toList());
+		}
+		if (spec.startsWith("#")) {
+			Identifier tagId = Identifier.tryParse(spec.substring(1));
+			if (tagId == null) {
+				return List.of();
+			}
+			Optional<RegistryEntryList.Named<Structure>> tag = registry.getOptional(TagKey.of(RegistryKeys.STRUCTURE, tagId));
+			return tag.map(entries -> List.<RegistryEntry<Structure>>copyOf(entries.stream().toList())).orElse(List.of());
+		}
+		Identifier id = Identifier.tryParse(spec);
+		if (id == null) {
+			return List.of();
+		}
+		return registry.getOptional(RegistryKey.of(RegistryKeys.STRUCTURE, id))
+				.<List<RegistryEntry<Structure>>>map(List::of)
+				.orElse(List.of());
+	}
+
+	// 索引・記録ファイル・キャッシュで使う構造物IDの文字列（バニラはパスのみ）
+	static String idOf(RegistryEntry<Structure> entry) {
+		return entry.getKey()
+				.map(key -> Identifier.DEFAULT_NAMESPACE.equals(key.getValue().getNamespace()) ? key.getValue().getPath() : key.getValue().toString())
+				.orElse("unknown");
+	}
+
+	// このワールドにランダム分散配置を持つ構造物だけを、配置ごとにまとめる
+	static List<Group> group(ServerWorld world, List<RegistryEntry<Structure>> structures) {
+		StructurePlacementCalculator calculator = world.getChunkManager().getStructurePlacementCalculator();
+		long seed = calculator.getStructureSeed();
+		Map<StructurePlacement, List<RegistryEntry<Structure>>> byPlacement = new LinkedHashMap<>();
+		for (RegistryEntry<Structure> entry : structures) {
+			for (StructurePlacement placement : calculator.getPlacements(entry)) {
+				if (placement instanceof RandomSpreadStructurePlacement) {
+					byPlacement.computeIfAbsent(placement, ignored -> new ArrayList<>()).add(entry);
+				}
+			}
+		}
+		List<Group> groups = new ArrayList<>(byPlacement.size());
+		for (Map.Entry<StructurePlacement, List<RegistryEntry<Structure>>> entry : byPlacement.entrySet()) {
+			RandomSpreadStructurePlacement placement = (RandomSpreadStructurePlacement) entry.getKey();
+			groups.add(Group.of(StructurePlacementEnumerator.PlacementGrid.of(placement, seed), entry.getValue()));
+		}
+		return groups;
+	}
+
+	static List<StructurePlacementEnumerator.PlacementGrid> grids(List<Group> groups) {
+		List<StructurePlacementEnumerator.PlacementGrid> grids = new ArrayList<>(groups.size());
+		for (Group group : groups) {
+			grids.add(group.grid());
+		}
+		return grids;
+	}
+
+	// 開始チャンクにグループ内のどの構造物があるかを1回のlocateで確認し、全構造物分を索引へ記録する（サーバースレッドから呼び出す）
+	static Found locate(ServerWorld world, ChunkGenerator generator, Group group, ChunkPos chunkPos, String requester) {
+		Pair<BlockPos, RegistryEntry<Structure>> result = NetherSearch.locateStart(world, generator, group.structures(), chunkPos, requester, group.label());
+		Found found = null;
+		long startChunk = chunkPos.toLong();
+		for (int i = 0; i < group.size(); i++) {
+			boolean hit = result != null && result.getSecond().equals(group.entries().get(i));
+			StructureIndex.recordLocated(world, group.structureIds().get(i), startChunk, hit ? result.getFirst() : null);
+			if (hit) {
+				found = new Found(i, result.getFirst());
+			}
+		}
+		return found;
+	}
+
+	// 1つの配置を共有する構造物の組。entriesとstructureIdsの並びは対応する
+	record Group(StructurePlacementEnumerator.PlacementGrid grid, List<RegistryEntry<Structure>> entries, List<String> structureIds,
+			RegistryEntryList<Structure> structures, String label) {
+		private static Group of(StructurePlacementEnumerator.PlacementGrid grid, List<RegistryEntry<Structure>> entries) {
+			List<String> ids = new ArrayList<>(entries.size());
+			for (RegistryEntry<Structure> entry : entries) {
+				ids.add(idOf(entry));
+			}
+			return new Group(grid, List.copyOf(entries), List.copyOf(ids), RegistryEntryList.of(entries), String.join(",", ids));
+		}
+
+		int size() {
+			return entries.size();
+		}
+
+		// 1つの構造物だけを対象にした一覧（中心の解決用）
+		RegistryEntryList<Structure> single(int index) {
+			return RegistryEntryList.of(entries.get(index));
+		}
+	}
+
+	// グループ内で見つかった構造物の番号と座標
+	record Found(int index, BlockPos pos) {}
+}
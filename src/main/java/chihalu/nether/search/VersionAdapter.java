@@ -0,0 +1,266 @@
+package chihalu.nether.search;
+
+import com.mojang.datafixers.util.Either;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.structure.StructureTemplate;
+import net.minecraft.structure.StructureTemplateManager;
+import net.minecraft.structure.pool.EmptyPoolElement;
+import net.minecraft.structure.pool.StructurePoolElement;
+import net.minecraft.text.ClickEvent;
+import net.minecraft.text.HoverEvent;
+import net.minecraft.text.Text;
+import net.minecraft.util.BlockRotation;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.random.Random;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+// 1.21〜1.21.10の間で形が変わったAPIを起動時に一度だけ解決し、以降は解決済みの関数を直接呼び出す
+// 呼び出しのたびにClass.forNameやgetDeclaredMethodを行わず、失敗時も例外を投げ直さない
+final class VersionAdapter {
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final String[] POOL_ELEMENT_ID_METHODS = {"getIdOrThrow", "getId"};
+	private static Function<String, ClickEvent> clipboardClick = command -> null;
+	private static Function<Text, HoverEvent> showTextHover = text -> null;
+	private static BiFunction<StructurePoolElement, StructureTemplateManager, List<Identifier>> jigsawTargetPools = (element, templates) -> List.of();
+	// プール要素のクラスごとに、IDを取り出すゲッターを一度だけ探して保持する
+	private static final ClassValue<MethodHandle[]> POOL_ELEMENT_ID_GETTERS = new ClassValue<>() {
+		@Override
+		protected MethodHandle[] computeValue(Class<?> type) {
+			return findPoolElementIdGetters(type);
+		}
+	};
+
+	private VersionAdapter() {
+	}
+
+	// onInitializeから一度だけ呼ぶ
+	static void probe() {
+		clipboardClick = probeClipboardClick();
+		showTextHover = probeShowTextHover();
+		jigsawTargetPools = probeJigsawTargetPools();
+	}
+
+	static ClickEvent clipboardClick(String command) {
+		return clipboardClick.apply(command);
+	}
+
+	static HoverEvent showTextHover(Text text) {
+		return showTextHover.apply(text);
+	}
+
+	// プール要素のジグソーブロックが接続先に指定しているプールのIDを返す（重複あり）
+	static List<Identifier> jigsawTargetPools(StructurePoolElement element, StructureTemplateManager templates) {
+		return jigsawTargetPools.apply(element, templates);
+	}
+
+	// プール要素のIDを返す。取り出せない要素ではnull
+	static Identifier poolElementId(Object element) {
+		if (element == null) {
+			return null;
+		}
+		for (MethodHandle getter : POOL_ELEMENT_ID_GETTERS.get(element.getClass())) {
+			Identifier identifier;
+			try {
+				identifier = toIdentifier((Object) getter.invokeExact(element));
+			} catch (Throwable e) {
+				// テンプレート直指定の要素ではgetIdOrThrowが例外を投げるため、次の候補へ進む
+				continue;
+			}
+			if (identifier != null) {
+				return identifier;
+			}
+		}
+		return null;
+	}
+
+	private static Function<String, ClickEvent> probeClipboardClick() {
+		try {
+			// 1.21.5以降はレコード型のイベントを直接生成できる
+			Function<String, ClickEvent> modern = ModernEvents.clipboardClick();
+			modern.apply("");
+			return modern;
+		} catch (LinkageError modernMissing) {
+			NetherSearch.LOGGER.debug("ClickEvent.CopyToClipboardが無いため旧形式のコンストラクタを使用します");
+		}
+		try {
+			MethodHandle constructor = MethodHandles.lookup().findConstructor(ClickEvent.class,
+					MethodType.methodType(void.class, ClickEvent.Action.class, String.class));
+			return command -> {
+				try {
+					return (ClickEvent) constructor.invoke(ClickEvent.Action.COPY_TO_CLIPBOARD, command);
+				} catch (Throwable e) {
+					return null;
+				}
+			};
+		} catch (ReflectiveOperationException | LinkageError legacyMissing) {
+			NetherSearch.LOGGER.warn("ClickEventの生成方法を解決できませんでした。座標のコピーは無効になります: {}", legacyMissing.toString());
+			return command -> null;
+		}
+	}
+
+	private static Function<Text, HoverEvent> probeShowTextHover() {
+		try {
+			Function<Text, HoverEvent> modern = ModernEvents.showTextHover();
+			modern.apply(Text.empty());
+			return modern;
+		} catch (LinkageError modernMissing) {
+			NetherSearch.LOGGER.debug("HoverEvent.ShowTextが無いため旧形式のコンストラクタを使用します");
+		}
+		try {
+			MethodHandle constructor = MethodHandles.lookup().findConstructor(HoverEvent.class,
+					MethodType.methodType(void.class, HoverEvent.Action.class, Object.class));
+			return text -> {
+				try {
+					return (HoverEvent) constructor.invoke(HoverEvent.Action.SHOW_TEXT, text);
+				} catch (Throwable e) {
+					return null;
+				}
+			};
+		} catch (ReflectiveOperationException | LinkageError legacyMissing) {
+			NetherSearch.LOGGER.warn("HoverEventの生成方法を解決できませんでした。ホバー表示は無効になります: {}", legacyMissing.toString());
+			return text -> null;
+		}
+	}
+
+	private static BiFunction<StructurePoolElement, StructureTemplateManager, List<Identifier>> probeJigsawTargetPools() {
+		try {
+			// 1.21.2以降はジグソーブロックの情報が接続先のプールを解析済みで持つ
+			BiFunction<StructurePoolElement, StructureTemplateManager, List<Identifier>> modern = ModernJigsaws::targetPools;
+			modern.apply(EmptyPoolElement.INSTANCE, null);
+			return modern;
+		} catch (LinkageError modernMissing) {
+			NetherSearch.LOGGER.debug("StructureTemplate.JigsawBlockInfoが無いため旧形式のNBTから接続先を読みます");
+		}
+		try {
+			// 旧形式は戻り値の型だけが異なるため、引数の型で探す（本番環境ではメソッド名が難読化されている）
+			MethodHandle getter = null;
+			for (Method method : StructurePoolElement.class.getDeclaredMethods()) {
+				if (method.getReturnType() == List.class && List.of(method.getParameterTypes())
+						.equals(List.of(StructureTemplateManager.class, BlockPos.class, BlockRotation.class, Random.class))) {
+					getter = MethodHandles.lookup().unreflect(method);
+					break;
+				}
+			}
+			if (getter == null) {
+				throw new NoSuchMethodException("StructurePoolElement#getStructureBlockInfos");
+			}
+			MethodHandle blockInfos = getter;
+			return (element, templates) -> {
+				try {
+					return legacyTargetPools((List<?>) blockInfos.invoke(element, templates, BlockPos.ORIGIN, BlockRotation.NONE, Random.create(0L)));
+				} catch (Throwable e) {
+					return List.of();
+				}
+			};
+		} catch (ReflectiveOperationException | LinkageError legacyMissing) {
+			NetherSearch.LOGGER.warn("ジグソーブロックの接続先を解決できませんでした。ピグリン要塞の種別は文字列で判定します: {}", legacyMissing.toString());
+			return (element, templates) -> List.of();
+		}
+	}
+
+	// 旧形式ではブロックのNBTの"pool"に接続先が入っている。NbtString#asStringも戻り値の型が変わったため、SNBTの引用符を外して読む
+	private static List<Identifier> legacyTargetPools(List<?> blockInfos) {
+		List<Identifier> pools = new ArrayList<>(blockInfos.size());
+		for (Object info : blockInfos) {
+			if (!(info instanceof StructureTemplate.StructureBlockInfo blockInfo)) {
+				continue;
+			}
+			NbtCompound nbt = blockInfo.nbt();
+			NbtElement pool = nbt != null ? nbt.get("pool") : null;
+			if (pool == null) {
+				continue;
+			}
+			String text = pool.toString();
+			if (text.length() >= 2 && (text.charAt(0) == '"' || text.charAt(0) == '\'') && text.charAt(text.length() - 1) == text.charAt(0)) {
+				text = text.substring(1, text.length() - 1);
+			}
+			Identifier id = Identifier.tryParse(text);
+			if (id != null) {
+				pools.add(id);
+			}
+		}
+		return pools;
+	}
+
+	// 旧来の名前付きメソッド、次にIdentifierまたはEitherを持つフィールドの順で候補を並べる
+	// 本番環境ではメソッド名が難読化されているため、型で探すフィールドの方が実際には使われる
+	private static MethodHandle[] findPoolElementIdGetters(Class<?> type) {
+		List<MethodHandle> getters = new ArrayList<>();
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for (String name : POOL_ELEMENT_ID_METHODS) {
+			try {
+				Method method = type.getDeclaredMethod(name);
+				method.setAccessible(true);
+				getters.add(lookup.unreflect(method).asType(GETTER_TYPE));
+			} catch (ReflectiveOperationException | RuntimeException ignored) {
+				// このバージョンには存在しない
+			}
+		}
+		for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())
+						|| (field.getType() != Identifier.class && field.getType() != Either.class)) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					getters.add(lookup.unreflectGetter(field).asType(GETTER_TYPE));
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					NetherSearch.LOGGER.debug("プール要素のフィールド{}にアクセスできませんでした", field.getName());
+				}
+			}
+		}
+		if (getters.isEmpty()) {
+			NetherSearch.LOGGER.warn("プール要素{}のID取得方法が見つかりませんでした", type.getName());
+		}
+		return getters.toArray(new MethodHandle[0]);
+	}
+
+	private static Identifier toIdentifier(Object value) {
+		if (value instanceof Identifier identifier) {
+			return identifier;
+		}
+		if (value instanceof Optional<?> optional && optional.orElse(null) instanceof Identifier identifier) {
+			return identifier;
+		}
+		if (value instanceof Either<?, ?> either && either.left().orElse(null) instanceof Identifier identifier) {
+			return identifier;
+		}
+		return null;
+	}
+
+	// 新しい形式のクラスへの参照はここに閉じ込め、存在しないバージョンでは読み込み失敗として切り離す
+	private static final class ModernEvents {
+		private static Function<String, ClickEvent> clipboardClick() {
+			return ClickEvent.CopyToClipboard::new;
+		}
+
+		private static Function<Text, HoverEvent> showTextHover() {
+			return HoverEvent.ShowText::new;
+		}
+	}
+
+	private static final class ModernJigsaws {
+		private static List<Identifier> targetPools(StructurePoolElement element, StructureTemplateManager templates) {
+			List<StructureTemplate.JigsawBlockInfo> infos = element.getStructureBlockInfos(templates, BlockPos.ORIGIN, BlockRotation.NONE, Random.create(0L));
+			List<Identifier> pools = new ArrayList<>(infos.size());
+			for (StructureTemplate.JigsawBlockInfo info : infos) {
+				pools.add(info.pool().getValue());
+			}
+			return pools;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package chihalu.nether.search;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.entity.EntityType;
+import net.minecraft.entity.data.DataTracker;
+import net.minecraft.entity.decoration.ArmorStandEntity;
+import net.minecraft.network.packet.s2c.play.EntitiesDestroyS2CPacket;
+import net.minecraft.network.packet.s2c.play.EntitySpawnS2CPacket;
+import net.minecraft.network.packet.s2c.play.EntityTrackerUpdateS2CPacket;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// サーバー側にエンティティを作らず、パケットだけで見せる発光マーカー
+// 見えている範囲のプレイヤーにだけ生成・メタデータ・削除パケットを送る
+// マーカーはチャンクごとにまとめ、範囲はチャンク単位で判定する。プレイヤーが別のチャンクへ移るか
+// マーカーが増えたときだけ、そのプレイヤーの範囲内のチャンクを確認し直す
+final class VirtualGlowMarkers {
+	// 表示する範囲（チャンク単位、160ブロック）
+	private static final int VIEW_DISTANCE_CHUNKS = 10;
+	private static final int VIEW_DISTANCE_CHUNKS_SQ = VIEW_DISTANCE_CHUNKS * VIEW_DISTANCE_CHUNKS;
+	private static final int VIEW_WINDOW_CHUNKS = (VIEW_DISTANCE_CHUNKS * 2 + 1) * (VIEW_DISTANCE_CHUNKS * 2 + 1);
+	private static final int REFRESH_INTERVAL_TICKS = 10;
+	// 通常のエンティティIDは0から増えていくため、仮想マーカーは上限から下へ割り当てる
+	private static final AtomicInteger NEXT_ENTITY_ID = new AtomicInteger(Integer.MAX_VALUE);
+	private static final Map<RegistryKey<World>, WorldMarkers> WORLDS = new HashMap<>();
+	private static List<DataTracker.SerializedEntry<?>> glowMetadata;
+
+	private VirtualGlowMarkers() {
+	}
+
+	static void add(ServerWorld world, long pos) {
+		WorldMarkers markers = WORLDS.computeIfAbsent(world.getRegistryKey(), key -> new WorldMarkers());
+		if (markers.idsByPos.containsKey(pos)) {
+			return;
+		}
+		markers.idsByPos.put(pos, NEXT_ENTITY_ID.getAndDecrement());
+		markers.positionsByChunk.computeIfAbsent(chunkOf(pos), chunk -> new LongOpenHashSet()).add(pos);
+		markers.version++;
+	}
+
+	static boolean remove(ServerWorld world, long pos) {
+		WorldMarkers markers = WORLDS.get(world.getRegistryKey());
+		if (markers == null || !markers.idsByPos.containsKey(pos)) {
+			return false;
+		}
+		int entityId = markers.idsByPos.remove(pos);
+		long chunk = chunkOf(pos);
+		LongOpenHashSet bucket = markers.positionsByChunk.get(chunk);
+		if (bucket != null && bucket.remove(pos) && bucket.isEmpty()) {
+			markers.positionsByChunk.remove(chunk);
+		}
+		for (ServerPlayerEntity player : world.getPlayers()) {
+			Viewer viewer = markers.viewers.get(player.getUuid());
+			if (viewer != null && viewer.visible.remove(pos)) {
+				player.networkHandler.sendPacket(new EntitiesDestroyS2CPacket(entityId));
+			}
+		}
+		return true;
+	}
+
+	// 一定間隔で視聴者の出入りを反映する
+	static void tick(ServerWorld world) {
+		if (world.getTime() % REFRESH_INTERVAL_TICKS == 0) {
+			refresh(world);
+		}
+	}
+
+	// ワールド内の各プレイヤーについて、範囲内に入ったマーカーを生成し、範囲外へ出たものを削除する
+	// 前回から同じチャンクにいて、マーカーも増えていないプレイヤーは確認しない
+	static void refresh(ServerWorld world) {
+		WorldMarkers markers = WORLDS.get(world.getRegistryKey());
+		if (markers == null) {
+			return;
+		}
+		long stamp = ++markers.refreshStamp;
+		for (ServerPlayerEntity player : world.getPlayers()) {
+			Viewer viewer = markers.viewers.computeIfAbsent(player.getUuid(), uuid -> new Viewer());
+			viewer.refreshStamp = stamp;
+			long chunk = player.getChunkPos().toLong();
+			if (viewer.chunk == chunk && viewer.version == markers.version) {
+				continue;
+			}
+			viewer.chunk = chunk;
+			viewer.version = markers.version;
+			update(world, markers, player, viewer);
+		}
+		// ログアウトや別ディメンションへ移動したプレイヤーの状態は捨てる
+		markers.viewers.values().removeIf(viewer -> viewer.refreshStamp != stamp);
+	}
+
+	// 範囲外へ出たマーカーを削除し、範囲内のチャンクのまだ見せていないマーカーを生成する
+	private static void update(ServerWorld world, WorldMarkers markers, ServerPlayerEntity player, Viewer viewer) {
+		int viewerX = ChunkPos.getPackedX(viewer.chunk);
+		int viewerZ = ChunkPos.getPackedZ(viewer.chunk);
+		IntArrayList destroyed = new IntArrayList();
+		LongIterator visible = viewer.visible.iterator();
+		while (visible.hasNext()) {
+			long pos = visible.nextLong();
+			if (!inRange(viewerX, viewerZ, chunkOf(pos))) {
+				visible.remove();
+				destroyed.add(markers.idsByPos.get(pos));
+			}
+		}
+		if (!destroyed.isEmpty()) {
+			player.networkHandler.sendPacket(new EntitiesDestroyS2CPacket(destroyed));
+		}
+		// マーカーのあるチャンクが範囲の面積より少なければそれを、多ければ範囲のチャンクを順に見る
+		if (markers.positionsByChunk.size() <= VIEW_WINDOW_CHUNKS) {
+			for (Long2ObjectMap.Entry<LongOpenHashSet> entry : markers.positionsByChunk.long2ObjectEntrySet()) {
+				if (inRange(viewerX, viewerZ, entry.getLongKey())) {
+					spawnAll(world, markers, player, viewer, entry.getValue());
+				}
+			}
+			return;
+		}
+		for (int dx = -VIEW_DISTANCE_CHUNKS; dx <= VIEW_DISTANCE_CHUNKS; dx++) {
+			for (int dz = -VIEW_DISTANCE_CHUNKS; dz <= VIEW_DISTANCE_CHUNKS; dz++) {
+				if (dx * dx + dz * dz > VIEW_DISTANCE_CHUNKS_SQ) {
+					continue;
+				}
+				LongOpenHashSet bucket = markers.positionsByChunk.get(ChunkPos.toLong(viewerX + dx, viewerZ + dz));
+				if (bucket != null) {
+					spawnAll(world, markers, player, viewer, bucket);
+				}
+			}
+		}
+	}
+
+	private static void spawnAll(ServerWorld world, WorldMarkers markers, ServerPlayerEntity player, Viewer viewer, LongOpenHashSet bucket) {
+		LongIterator iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			long pos = iterator.nextLong();
+			if (!viewer.visible.add(pos)) {
+				continue;
+			}
+			int entityId = markers.idsByPos.get(pos);
+			double x = BlockPos.unpackLongX(pos) + 0.5;
+			double y = BlockPos.unpackLongY(pos) + 0.5;
+			double z = BlockPos.unpackLongZ(pos) + 0.5;
+			player.networkHandler.sendPacket(new EntitySpawnS2CPacket(entityId, UUID.randomUUID(), x, y, z,
+					0.0f, 0.0f, EntityType.ARMOR_STAND, 0, Vec3d.ZERO, 0.0));
+			player.networkHandler.sendPacket(new EntityTrackerUpdateS2CPacket(entityId, glowMetadata(world)));
+		}
+	}
+
+	static void clearAll(MinecraftServer server) {
+		if (server != null) {
+			for (Map.Entry<RegistryKey<World>, WorldMarkers> entry : WORLDS.entrySet()) {
+				ServerWorld world = server.getWorld(entry.getKey());
+				if (world == null) {
+					continue;
+				}
+				WorldMarkers markers = entry.getValue();
+				for (ServerPlayerEntity player : world.getPlayers()) {
+					Viewer viewer = markers.viewers.get(player.getUuid());
+					if (viewer == null || viewer.visible.isEmpty()) {
+						continue;
+					}
+					IntArrayList ids = new IntArrayList(viewer.visible.size());
+					LongIterator iterator = viewer.visible.iterator();
+					while (iterator.hasNext()) {
+						ids.add(markers.idsByPos.get(iterator.nextLong()));
+					}
+					player.networkHandler.sendPacket(new EntitiesDestroyS2CPacket(ids));
+				}
+			}
+		}
+		WORLDS.clear();
+	}
+
+	// ログアウトしたプレイヤーの表示状態を破棄する（クライアント側は切断時に自動で消える）
+	static void onDisconnect(ServerPlayerEntity player) {
+		forgetViewer(player);
+	}
+
+	// リスポーンではクライアントがワールドを作り直して仮想マーカーも消えるため、表示状態を破棄して次の確認で送り直す
+	// 同じUUIDの新しいプレイヤーになり、同じチャンクに戻ることもあるので、移動の判定だけには任せられない
+	static void onRespawn(ServerPlayerEntity player) {
+		forgetViewer(player);
+	}
+
+	private static void forgetViewer(ServerPlayerEntity player) {
+		for (WorldMarkers markers : WORLDS.values()) {
+			markers.viewers.remove(player.getUuid());
+		}
+	}
+
+	private static long chunkOf(long pos) {
+		return ChunkPos.toLong(BlockPos.unpackLongX(pos) >> 4, BlockPos.unpackLongZ(pos) >> 4);
+	}
+
+	private static boolean inRange(int viewerX, int viewerZ, long chunk) {
+		long dx = ChunkPos.getPackedX(chunk) - viewerX;
+		long dz = ChunkPos.getPackedZ(chunk) - viewerZ;
+		return dx * dx + dz * dz <= VIEW_DISTANCE_CHUNKS_SQ;
+	}
+
+	// 透明・発光状態のアーマースタンドと同じメタデータを一度だけ作って使い回す
+	private static List<DataTracker.SerializedEntry<?>> glowMetadata(ServerWorld world) {
+		if (glowMetadata == null) {
+			ArmorStandEntity template = new ArmorStandEntity(world, 0.0, 0.0, 0.0);
+			template.setInvisible(true);
+			template.setNoGravity(true);
+			template.setGlowing(true);
+			template.setSilent(true);
+			List<DataTracker.SerializedEntry<?>> entries = template.getDataTracker().getChangedEntries();
+			glowMetadata = entries != null ? List.copyOf(entries) : List.of();
+		}
+		return glowMetadata;
+	}
+
+	private static final class WorldMarkers {
+		private final Long2IntOpenHashMap idsByPos = new Long2IntOpenHashMap();
+		private final Long2ObjectOpenHashMap<LongOpenHashSet> positionsByChunk = new Long2ObjectOpenHashMap<>();
+		private final Map<UUID, Viewer> viewers = new HashMap<>();
+		// マーカーを追加するたびに進め、各視聴者が最後に確認した時点と比べる
+		private int version;
+		private long refreshStamp;
+	}
+
+	// 1人のプレイヤーに見せているマーカーの位置と、最後に確認したときのチャンク
+	private static final class Viewer {
+		private final LongOpenHashSet visible = new LongOpenHashSet();
+		private long chunk = Long.MIN_VALUE;
+		private int version = -1;
+		private long refreshStamp;
+	}
+}
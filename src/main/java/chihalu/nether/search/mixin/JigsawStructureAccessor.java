@@ -0,0 +1,14 @@
+package chihalu.nether.search.mixin;
+
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.structure.pool.StructurePool;
+import net.minecraft.world.gen.structure.JigsawStructure;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+// ジグソー構造物の開始プールを読む（公開のゲッターが無いため）
+@Mixin(JigsawStructure.class)
+public interface JigsawStructureAccessor {
+	@Accessor("startPool")
+	RegistryEntry<StructurePool> netherSearch$getStartPool();
+}
@@ -0,0 +1,16 @@
+package chihalu.nether.search.mixin;
+
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.structure.pool.StructurePool;
+import net.minecraft.structure.pool.StructurePoolElement;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import java.util.List;
+
+// プールの要素を重みで繰り返さず、定義された順に1つずつ読む
+@Mixin(StructurePool.class)
+public interface StructurePoolAccessor {
+	@Accessor("elementCounts")
+	List<Pair<StructurePoolElement, Integer>> netherSearch$getElementCounts();
+}
@@ -0,0 +1,27 @@
+package chihalu.nether.search.mixin;
+
+import chihalu.nether.search.NetherSearch;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+// ブロックエンティティの削除を通知し、その位置の発光マーカーを外す
+// 破壊・爆発・ピストン・/setblockのいずれもここを通るが、チャンクのアンロードでは呼ばれない
+@Mixin(WorldChunk.class)
+public abstract class WorldChunkMixin {
+	@Shadow
+	public abstract World getWorld();
+
+	@Inject(method = "removeBlockEntity", at = @At("HEAD"))
+	private void netherSearch$onRemoveBlockEntity(BlockPos pos, CallbackInfo ci) {
+		if (getWorld() instanceof ServerWorld serverWorld) {
+			NetherSearch.onBlockEntityRemoved(serverWorld, pos);
+		}
+	}
+}